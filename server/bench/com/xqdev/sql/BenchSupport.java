@@ -0,0 +1,254 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+import javax.servlet.*;
+import javax.servlet.http.*;
+
+/**
+ * Plumbing shared by the benchmarks: just enough of a servlet container
+ * to drive {@link MLSQL} in-process, an embedded Derby database, and
+ * synthetic JDBC objects for benchmarks that shouldn't measure a driver.
+ *
+ * The servlet and JDBC interfaces are large and we only need a handful of
+ * methods from each, so they're implemented with dynamic proxies.  The
+ * proxy dispatch is a small constant cost that's the same on both sides
+ * of any before/after comparison.
+ */
+class BenchSupport {
+
+  static final String DERBY_DRIVER = "org.apache.derby.jdbc.EmbeddedDriver";
+
+  static final OutputStream NULL_OUTPUT = new OutputStream() {
+    public void write(int b) { }
+    public void write(byte[] b, int off, int len) { }
+  };
+
+  /**
+   * Returns the url of a fresh in-memory Derby database.
+   */
+  static String derbyUrl(String name) {
+    return "jdbc:derby:memory:" + name + ";create=true";
+  }
+
+  /**
+   * Drops an in-memory Derby database.  Derby reports success by throwing.
+   */
+  static void dropDerby(String name) {
+    try {
+      DriverManager.getConnection("jdbc:derby:memory:" + name + ";drop=true");
+    }
+    catch (SQLException expected) { }
+  }
+
+  /**
+   * Creates and fills the table the benchmarks query: an integer key, a
+   * short string, a decimal and a timestamp per row.
+   */
+  static void createTable(String url, int rows) throws Exception {
+    Class.forName(DERBY_DRIVER);
+    Connection con = DriverManager.getConnection(url);
+    try {
+      Statement stmt = con.createStatement();
+      stmt.execute("create table bench (id int primary key, name varchar(64), " +
+              "amount decimal(12,2), created timestamp)");
+      stmt.close();
+
+      PreparedStatement insert = con.prepareStatement("insert into bench values (?, ?, ?, ?)");
+      for (int i = 0; i < rows; i++) {
+        insert.setInt(1, i);
+        insert.setString(2, "name " + i);
+        insert.setBigDecimal(3, new java.math.BigDecimal(i).movePointLeft(2));
+        insert.setTimestamp(4, new Timestamp(1160000000000L + i * 1000L));
+        insert.addBatch();
+      }
+      insert.executeBatch();
+      insert.close();
+    }
+    finally {
+      con.close();
+    }
+  }
+
+  static Properties derbySettings(String url) {
+    Properties settings = new Properties();
+    settings.setProperty("driver", DERBY_DRIVER);
+    settings.setProperty("url", url);
+    settings.setProperty("user", "");
+    settings.setProperty("password", "");
+    settings.setProperty(ConnectionPool.VALIDATION_QUERY, "values 1");
+    return settings;
+  }
+
+  static ServletConfig config(final Properties initParams) {
+    final ServletContext context = (ServletContext) proxy(ServletContext.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("log")) {
+          Log.log(String.valueOf(args[0]));
+        }
+        return defaultValue(method);
+      }
+    });
+    return (ServletConfig) proxy(ServletConfig.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("getInitParameter")) return initParams.getProperty((String) args[0]);
+        if (name.equals("getInitParameterNames")) return initParams.propertyNames();
+        if (name.equals("getServletContext")) return context;
+        if (name.equals("getServletName")) return "mlsql";
+        return defaultValue(method);
+      }
+    });
+  }
+
+  /**
+   * A POST carrying the given body.
+   */
+  static HttpServletRequest request(final byte[] body) {
+    return (HttpServletRequest) proxy(HttpServletRequest.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("getInputStream")) {
+          final ByteArrayInputStream in = new ByteArrayInputStream(body);
+          return new ServletInputStream() {
+            public int read() { return in.read(); }
+            public int read(byte[] b, int off, int len) { return in.read(b, off, len); }
+          };
+        }
+        if (name.equals("getMethod")) return "POST";
+        if (name.equals("getContentLength")) return body.length;
+        return defaultValue(method);
+      }
+    });
+  }
+
+  /**
+   * A response whose body goes to the given stream.
+   */
+  static HttpServletResponse response(final OutputStream out) {
+    return (HttpServletResponse) proxy(HttpServletResponse.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) throws IOException {
+        if (method.getName().equals("getOutputStream")) {
+          return new ServletOutputStream() {
+            public void write(int b) throws IOException { out.write(b); }
+            public void write(byte[] b, int off, int len) throws IOException { out.write(b, off, len); }
+          };
+        }
+        return defaultValue(method);
+      }
+    });
+  }
+
+  /**
+   * An in-memory result set of the given shape.  Every column is a
+   * VARCHAR holding a short string, or with <code>mixed</code> the columns
+   * cycle through INTEGER, VARCHAR, DECIMAL and DOUBLE.
+   */
+  static ResultSet resultSet(final int columns, final int rows, boolean mixed) {
+    final int[] mixedTypes = { Types.INTEGER, Types.VARCHAR, Types.DECIMAL, Types.DOUBLE };
+    final String[] names = new String[columns + 1];
+    final int[] types = new int[columns + 1];
+    final String[][] values = new String[Math.min(rows, 64) + 1][columns + 1];
+    for (int c = 1; c <= columns; c++) {
+      names[c] = "column" + c;
+      types[c] = mixed ? mixedTypes[c % mixedTypes.length] : Types.VARCHAR;
+      for (int r = 1; r < values.length; r++) {
+        values[r][c] = types[c] == Types.VARCHAR ? "value " + r + " & " + c : String.valueOf(r * 1000 + c);
+      }
+    }
+    final ResultSetMetaData rsmd = (ResultSetMetaData) proxy(ResultSetMetaData.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("getColumnCount")) return columns;
+        if (name.equals("getColumnName") || name.equals("getColumnLabel")) return names[(Integer) args[0]];
+        if (name.equals("getColumnTypeName")) return types[(Integer) args[0]] == Types.VARCHAR ? "VARCHAR" : "NUMBER";
+        if (name.equals("getColumnType")) return types[(Integer) args[0]];
+        if (name.equals("isSigned")) return Boolean.TRUE;
+        return defaultValue(method);
+      }
+    });
+    return (ResultSet) proxy(ResultSet.class, new InvocationHandler() {
+      int row = 0;
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("next")) return ++row <= rows;
+        if (name.equals("getMetaData")) return rsmd;
+        if (name.equals("wasNull")) return Boolean.FALSE;
+        if (name.startsWith("get") && args != null && args[0] instanceof Integer) {
+          String value = values[(row - 1) % (values.length - 1) + 1][(Integer) args[0]];
+          if (name.equals("getLong")) return Long.valueOf(value);
+          if (name.equals("getDouble")) return Double.valueOf(value);
+          if (name.equals("getBigDecimal")) return new java.math.BigDecimal(value);
+          return value;
+        }
+        return defaultValue(method);
+      }
+    });
+  }
+
+  /**
+   * A statement that accepts and discards every setter call, so binding
+   * benchmarks measure our conversions and not a driver's.
+   */
+  static PreparedStatement discardingStatement() {
+    return (PreparedStatement) proxy(PreparedStatement.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        return defaultValue(method);
+      }
+    });
+  }
+
+  /**
+   * A statement that keeps the value of the last setter call in
+   * <code>bound[0]</code>, so a check can see what was actually bound.
+   */
+  static PreparedStatement capturingStatement(final Object[] bound) {
+    return (PreparedStatement) proxy(PreparedStatement.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getName().startsWith("set") && args != null && args.length > 1) {
+          bound[0] = args[1];
+        }
+        return defaultValue(method);
+      }
+    });
+  }
+
+  private static Object proxy(Class<?> type, InvocationHandler handler) {
+    return Proxy.newProxyInstance(BenchSupport.class.getClassLoader(), new Class<?>[] { type }, handler);
+  }
+
+  private static Object defaultValue(Method method) {
+    Class<?> type = method.getReturnType();
+    if (type == boolean.class) return Boolean.FALSE;
+    if (type == int.class) return 0;
+    if (type == long.class) return 0L;
+    if (type == short.class) return (short) 0;
+    if (type == float.class) return 0f;
+    if (type == double.class) return 0d;
+    if (type == byte.class) return (byte) 0;
+    return null;
+  }
+}
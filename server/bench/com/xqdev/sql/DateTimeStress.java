@@ -0,0 +1,156 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.sql.PreparedStatement;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that date, time and timestamp parameters bind to the right
+ * instant when many request threads bind at once.  Random values are
+ * first parsed on one thread with the SimpleDateFormat patterns
+ * TypeMapping used to share, which is correct when nothing else touches
+ * the format.  Then several threads bind the same values through
+ * {@link TypeMapping#parameterize} and every result is compared with
+ * that reference.  For contrast the same threads also parse through one
+ * shared SimpleDateFormat per type, as the old code did.
+ * <pre>
+ *   ant bench.stress -Djmh.lib=... -Dderby.jar=... [-Dstress.args="threads values rounds"]
+ * </pre>
+ * Exits with status 1 if any bound value was wrong.
+ */
+public class DateTimeStress {
+
+  private static final String[] TYPES = { "date", "time", "timestamp" };
+  private static final String[] PATTERNS = {
+    "yyyy-MM-ddZ", "HH:mm:ss.SSSZ", "yyyy-MM-dd'T'HH:mm:ss.SSSZ"
+  };
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int count = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+    final int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+    Random random = new Random(20061017);
+    final String[][] values = new String[TYPES.length][count];
+    final long[][] expected = new long[TYPES.length][count];
+    for (int t = 0; t < TYPES.length; t++) {
+      DateFormat reference = new SimpleDateFormat(PATTERNS[t]);
+      for (int i = 0; i < count; i++) {
+        values[t][i] = randomValue(TYPES[t], random);
+        expected[t][i] = reference.parse(withoutZoneColon(values[t][i])).getTime();
+      }
+    }
+
+    final DateFormat[] shared = new DateFormat[TYPES.length];
+    for (int t = 0; t < TYPES.length; t++) {
+      shared[t] = new SimpleDateFormat(PATTERNS[t]);
+    }
+    final AtomicInteger[] wrong = { new AtomicInteger(), new AtomicInteger(), new AtomicInteger() };
+    final AtomicInteger[] sharedWrong = { new AtomicInteger(), new AtomicInteger(), new AtomicInteger() };
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (int n = 0; n < threads; n++) {
+      final int offset = n * count / threads;
+      futures.add(pool.submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          Object[] bound = new Object[1];
+          PreparedStatement stmt = BenchSupport.capturingStatement(bound);
+          start.await();
+          for (int r = 0; r < rounds; r++) {
+            for (int k = 0; k < values[0].length; k++) {
+              // Each thread starts at a different place so they don't
+              // all parse the same value at the same moment
+              int i = (offset + k) % values[0].length;
+              for (int t = 0; t < TYPES.length; t++) {
+                TypeMapping.parameterize(TYPES[t], false, stmt, 1, values[t][i]);
+                if (((java.util.Date) bound[0]).getTime() != expected[t][i]) {
+                  wrong[t].incrementAndGet();
+                }
+                try {
+                  if (shared[t].parse(withoutZoneColon(values[t][i])).getTime() != expected[t][i]) {
+                    sharedWrong[t].incrementAndGet();
+                  }
+                }
+                catch (Exception e) {
+                  // Concurrent use often throws rather than returning a wrong value
+                  sharedWrong[t].incrementAndGet();
+                }
+              }
+            }
+          }
+          return null;
+        }
+      }));
+    }
+    long began = System.nanoTime();
+    start.countDown();
+    for (Future<?> f : futures) {
+      f.get();
+    }
+    long millis = (System.nanoTime() - began) / 1000000;
+    pool.shutdown();
+
+    long checked = (long) threads * rounds * count;
+    System.out.printf("%d threads, %d values of each type, %d rounds, %d ms%n", threads, count, rounds, millis);
+    System.out.printf("%-10s %12s %12s %16s%n", "type", "checked", "wrong", "shared SDF wrong");
+    int total = 0;
+    for (int t = 0; t < TYPES.length; t++) {
+      System.out.printf("%-10s %12d %12d %16d%n", TYPES[t], checked, wrong[t].get(), sharedWrong[t].get());
+      total += wrong[t].get();
+    }
+    if (total > 0) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * A value in the form the XQuery side sends, with milliseconds and a
+   * numeric timezone so the old patterns can read it.  Years run from 0001
+   * to 9999, so some fall before the Julian/Gregorian switch in 1582.
+   */
+  private static String randomValue(String type, Random random) {
+    String date = String.format("%04d-%02d-%02d",
+            1 + random.nextInt(9999), 1 + random.nextInt(12), 1 + random.nextInt(28));
+    String time = String.format("%02d:%02d:%02d.%03d",
+            random.nextInt(24), random.nextInt(60), random.nextInt(60), random.nextInt(1000));
+    int offset = (random.nextInt(57) - 28) * 30;  // -14:00 to +14:00 in half hours
+    String zone = String.format("%s%02d:%02d", offset < 0 ? "-" : "+", Math.abs(offset) / 60, Math.abs(offset) % 60);
+    if (type.equals("date")) return date + zone;
+    if (type.equals("time")) return time + zone;
+    return date + "T" + time + zone;
+  }
+
+  /**
+   * The old TypeMapping's fix-up: SimpleDateFormat wants -0700, not -07:00.
+   */
+  private static String withoutZoneColon(String value) {
+    int lastIndex = value.lastIndexOf(':');
+    return value.substring(0, lastIndex) + value.substring(lastIndex + 1);
+  }
+}
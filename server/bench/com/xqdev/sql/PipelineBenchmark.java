@@ -0,0 +1,133 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * End to end cost of a request: decoding the post body, borrowing a
+ * connection, binding, executing against an embedded Derby database and
+ * writing the XML response.  The response goes nowhere, so this is the
+ * servlet's own overhead plus Derby's, without any network.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+
+  private static final String DATABASE = "pipeline";
+  private static final int TABLE_ROWS = 10000;
+
+  /** Rows returned by the range select */
+  @Param({"1", "100", "1000"})
+  public int rows;
+
+  private MLSQL servlet;
+  private byte[] pointSelect;
+  private byte[] rangeSelect;
+  private byte[] cachedRangeSelect;
+  private byte[] update;
+
+  @Setup
+  public void setUp() throws Exception {
+    String url = BenchSupport.derbyUrl(DATABASE);
+    BenchSupport.createTable(url, TABLE_ROWS);
+
+    servlet = new MLSQL();
+    servlet.init(BenchSupport.config(BenchSupport.derbySettings(url)));
+
+    pointSelect = request("select",
+            "select * from bench where id = ?", "<sql:parameter type=\"int\">42</sql:parameter>");
+    rangeSelect = request("select",
+            "select * from bench where id < ?", "<sql:parameter type=\"int\">" + rows + "</sql:parameter>");
+    cachedRangeSelect = request("select",
+            "select * from bench where id < ?", "<sql:parameter type=\"int\">" + rows + "</sql:parameter>",
+            "<sql:cache-ttl>3600000</sql:cache-ttl>");
+    update = request("update",
+            "update bench set name = ? where id = ?",
+            "<sql:parameter type=\"string\">renamed</sql:parameter>" +
+            "<sql:parameter type=\"int\">42</sql:parameter>");
+  }
+
+  @TearDown
+  public void tearDown() {
+    servlet.destroy();
+    BenchSupport.dropDerby(DATABASE);
+  }
+
+  @Benchmark
+  public void pointSelect() throws Exception {
+    post(pointSelect);
+  }
+
+  @Benchmark
+  public void rangeSelect() throws Exception {
+    post(rangeSelect);
+  }
+
+  /**
+   * The range select answered from the result cache after the first call.
+   */
+  @Benchmark
+  public void cachedRangeSelect() throws Exception {
+    post(cachedRangeSelect);
+  }
+
+  @Benchmark
+  public void update() throws Exception {
+    post(update);
+  }
+
+  /**
+   * The same point select from several threads at once, which adds pool
+   * and statement cache contention to the picture.
+   */
+  @Benchmark
+  @Threads(8)
+  public void pointSelectConcurrent() throws Exception {
+    post(pointSelect);
+  }
+
+  private void post(byte[] body) throws Exception {
+    servlet.doPost(BenchSupport.request(body), BenchSupport.response(BenchSupport.NULL_OUTPUT));
+  }
+
+  private static byte[] request(String type, String query, String parameters) throws UnsupportedEncodingException {
+    return request(type, query, parameters, "");
+  }
+
+  private static byte[] request(String type, String query, String parameters, String options)
+          throws UnsupportedEncodingException {
+    String xml = "<sql:request xmlns:sql=\"" + ResultWriter.SQL_NAMESPACE + "\">" +
+            "<sql:type>" + type + "</sql:type>" +
+            "<sql:query>" + query.replace("<", "&lt;") + "</sql:query>" +
+            "<sql:execute-options><sql:parameters>" + parameters + "</sql:parameters>" + options +
+            "</sql:execute-options>" +
+            "</sql:request>";
+    return xml.getBytes("UTF-8");
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.sql.Connection;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Borrow and return under contention: 16 threads share a pool of
+ * <code>poolSize</code> connections, so with a small pool most of the
+ * time goes to waiting for a permit.  Each borrow includes the
+ * validation query, as it does in the servlet.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class PoolBenchmark {
+
+  private static final String DATABASE = "pool";
+
+  @Param({"1", "4", "16"})
+  public int poolSize;
+
+  private ConnectionPool pool;
+
+  @Setup
+  public void setUp() throws Exception {
+    String url = BenchSupport.derbyUrl(DATABASE);
+    Properties settings = BenchSupport.derbySettings(url);
+    settings.setProperty(ConnectionPool.MAX_SIZE, String.valueOf(poolSize));
+    settings.setProperty(ConnectionPool.MIN_SIZE, String.valueOf(poolSize));
+    pool = new ConnectionPool(BenchSupport.DERBY_DRIVER, url, null, null, settings, null);
+
+    // Open every connection up front so the measurement is steady state
+    Connection[] warm = new Connection[poolSize];
+    for (int i = 0; i < poolSize; i++) {
+      warm[i] = pool.getConnection();
+    }
+    for (Connection con : warm) {
+      pool.returnConnection(con);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    pool.close();
+    BenchSupport.dropDerby(DATABASE);
+  }
+
+  @Benchmark
+  public void borrowAndReturn(Blackhole bh) throws Exception {
+    Connection con = pool.getConnection();
+    try {
+      bh.consume(con);
+    }
+    finally {
+      pool.returnConnection(con);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jdom.*;
+import org.jdom.input.SAXBuilder;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading a request with {@link RequestDecoder} compared with the way it
+ * used to be read: build a JDOM document with SAXBuilder, then pull each
+ * option out with XPath.  Run with <code>-prof gc</code> to compare
+ * allocation as well as time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestDecoderBenchmark {
+
+  private static final Namespace[] NAMESPACES = new Namespace[] {
+    Namespace.getNamespace(ResultWriter.SQL_PREFIX, ResultWriter.SQL_NAMESPACE)
+  };
+
+  @Param({"1", "20"})
+  public int parameters;
+
+  private byte[] body;
+
+  @Setup
+  public void setUp() throws Exception {
+    StringBuffer buf = new StringBuffer();
+    buf.append("<sql:request xmlns:sql=\"").append(ResultWriter.SQL_NAMESPACE).append("\">");
+    buf.append("<sql:type>select</sql:type>");
+    buf.append("<sql:query>select * from bench where id in (?");
+    for (int i = 1; i < parameters; i++) {
+      buf.append(", ?");
+    }
+    buf.append(")</sql:query>");
+    buf.append("<sql:execute-options><sql:max-rows>100</sql:max-rows><sql:query-timeout>30</sql:query-timeout>");
+    buf.append("<sql:parameters>");
+    for (int i = 0; i < parameters; i++) {
+      buf.append("<sql:parameter type=\"int\">").append(i).append("</sql:parameter>");
+    }
+    buf.append("</sql:parameters></sql:execute-options></sql:request>");
+    body = buf.toString().getBytes("UTF-8");
+  }
+
+  @Benchmark
+  public void pullParser(Blackhole bh) throws Exception {
+    SqlRequest request = RequestDecoder.decode(new ByteArrayInputStream(body));
+    bh.consume(request.type);
+    bh.consume(request.query);
+    bh.consume(request.getIntOption("max-rows", -1));
+    bh.consume(request.getIntOption("query-timeout", -1));
+    bh.consume(request.getIntOption("max-field-size", -1));
+    for (SqlRequest.Parameter param : request.parameters) {
+      bh.consume(param.type);
+      bh.consume(param.value);
+    }
+  }
+
+  @Benchmark
+  public void jdomAndXPath(Blackhole bh) throws Exception {
+    Document doc = new SAXBuilder().build(new ByteArrayInputStream(body));
+    XPathHelper xpath = new XPathHelper(doc.getRootElement(), NAMESPACES);
+    bh.consume(xpath.getString("sql:type"));
+    bh.consume(xpath.getString("sql:query"));
+    bh.consume(xpath.getInt("sql:execute-options/sql:max-rows", -1));
+    bh.consume(xpath.getInt("sql:execute-options/sql:query-timeout", -1));
+    bh.consume(xpath.getInt("sql:execute-options/sql:max-field-size", -1));
+    List<Element> params = xpath.getElements("sql:execute-options/sql:parameters/sql:parameter");
+    for (Element param : params) {
+      bh.consume(param.getAttributeValue("type"));
+      bh.consume(param.getText());
+    }
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.io.*;
+
+/**
+ * Prints the size of the response each format writes for the result
+ * shapes {@link ResultWriterBenchmark} times, so a format's CPU cost can be
+ * weighed against what it saves on the wire.  Sizes don't vary from run
+ * to run, so this is a plain program rather than a benchmark:
+ * <pre>
+ *   ant bench.sizes -Djmh.lib=... -Dderby.jar=...
+ * </pre>
+ */
+public class ResponseSizes {
+
+  private static final String[] FORMATS = { ResultWriter.XML, ResultWriter.JSON, ResultWriter.DELIMITED };
+
+  public static void main(String[] args) throws Exception {
+    System.out.printf("%-8s %7s %6s %12s %12s %12s%n",
+            "types", "columns", "rows", "xml", "json", "delimited");
+    for (String types : new String[] { "varchar", "mixed" }) {
+      for (int columns : new int[] { 4, 64 }) {
+        for (int rows : new int[] { 10, 10000 }) {
+          System.out.printf("%-8s %7d %6d", types, columns, rows);
+          long xml = 0;
+          for (String format : FORMATS) {
+            long bytes = size(format, columns, rows, types.equals("mixed"));
+            if (format.equals(ResultWriter.XML)) {
+              xml = bytes;
+              System.out.printf(" %12d", bytes);
+            }
+            else {
+              System.out.printf(" %12s", bytes + " (" + (bytes * 100 / xml) + "%)");
+            }
+          }
+          System.out.println();
+        }
+      }
+    }
+  }
+
+  private static long size(String format, int columns, int rows, boolean mixed) throws Exception {
+    CountingStream out = new CountingStream();
+    ResultWriter writer = ResultWriter.create(format, out);
+    writer.startDocument();
+    writer.addResultSet(BenchSupport.resultSet(columns, rows, mixed));
+    writer.endDocument();
+    return out.count;
+  }
+
+  private static class CountingStream extends OutputStream {
+    long count = 0;
+
+    public void write(int b) {
+      count++;
+    }
+
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}
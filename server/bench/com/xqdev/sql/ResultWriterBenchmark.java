@@ -0,0 +1,62 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Serializing a result set in each response format, for narrow and wide,
+ * short and long results, with string or typed columns.  The rows come
+ * from memory and the output goes nowhere, so this is purely
+ * {@link ResultWriter#addResultSet}.  {@link ResponseSizes} reports how
+ * many bytes each format writes for the same shapes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResultWriterBenchmark {
+
+  @Param({"4", "64"})
+  public int columns;
+
+  @Param({"10", "10000"})
+  public int rows;
+
+  /** All VARCHAR, or a mix of INTEGER, VARCHAR, DECIMAL and DOUBLE */
+  @Param({"varchar", "mixed"})
+  public String types;
+
+  @Param({"xml", "json", "delimited"})
+  public String format;
+
+  @Benchmark
+  public void addResultSet() throws Exception {
+    ResultWriter writer = ResultWriter.create(format, BenchSupport.NULL_OUTPUT);
+    writer.startDocument();
+    writer.addResultSet(BenchSupport.resultSet(columns, rows, types.equals("mixed")));
+    writer.endDocument();
+  }
+}
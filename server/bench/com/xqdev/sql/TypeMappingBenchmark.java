@@ -0,0 +1,81 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.sql.PreparedStatement;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of turning one parameter's text into a bound value, per type.  The
+ * statement discards what it's given, so only our parsing is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TypeMappingBenchmark {
+
+  private static final Map<String, String> SAMPLES = new HashMap<String, String>();
+  static {
+    SAMPLES.put("boolean", "true");
+    SAMPLES.put("date", "2006-10-17-07:00");
+    SAMPLES.put("double", "12345.6789");
+    SAMPLES.put("float", "3.25");
+    SAMPLES.put("int", "123456");
+    SAMPLES.put("long", "1234567890123");
+    SAMPLES.put("short", "1234");
+    SAMPLES.put("string", "the quick brown fox");
+    SAMPLES.put("time", "13:20:00.000-07:00");
+    SAMPLES.put("timestamp", "2006-10-17T13:20:00.123456-07:00");
+  }
+
+  @Param({"boolean", "date", "double", "float", "int", "long", "short", "string", "time", "timestamp"})
+  public String type;
+
+  private String value;
+  private PreparedStatement stmt;
+
+  @Setup
+  public void setUp() {
+    value = SAMPLES.get(type);
+    stmt = BenchSupport.discardingStatement();
+  }
+
+  @Benchmark
+  public void parameterize() throws Exception {
+    TypeMapping.parameterize(type, false, stmt, 1, value);
+  }
+
+  /**
+   * Many request threads binding at once, where any shared parser state
+   * would show up as contention (or as wrong values).
+   */
+  @Benchmark
+  @Threads(8)
+  public void parameterizeConcurrent() throws Exception {
+    TypeMapping.parameterize(type, false, stmt, 1, value);
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Stops a datasource's requests from queueing up on a database that
+ * isn't answering.  Without it every request waits out its own
+ * <code>DriverManager.getConnection</code> timeout, tying up a container
+ * thread each time, and only to fail in the end.
+ *
+ * After <code>breaker-failure-threshold</code> connection failures in a
+ * row (connections that couldn't be opened, or that broke with an 08
+ * SQLState) the breaker opens, and requests fail at once with a 08001
+ * exception saying the database is unreachable.  Every
+ * <code>breaker-open-time</code> ms a single probe is let through,
+ * opening one connection from the housekeeping thread (or, for a pool
+ * without one, from the next request).  If the connection opens the
+ * breaker closes and requests flow again, otherwise it stays open for
+ * another round.
+ *
+ * Settings, per datasource or from the servlet init-params:
+ * <ul>
+ * <li><code>breaker-failure-threshold</code> - failures in a row that open the breaker, 0 to never open it (default 5)
+ * <li><code>breaker-open-time</code> - ms between probes while open (default 10000)
+ * </ul>
+ */
+class CircuitBreaker {
+
+  public static final String FAILURE_THRESHOLD = "breaker-failure-threshold";
+  public static final String OPEN_TIME = "breaker-open-time";
+
+  enum State {
+    CLOSED, OPEN, HALF_OPEN;
+
+    final String label = name().toLowerCase().replace('_', '-');
+  }
+
+  private String name;
+  private int threshold;
+  private long openTime;
+  private AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+  private AtomicInteger failures = new AtomicInteger();
+  private volatile long openedAt;
+  private volatile String lastError;
+  private AtomicLong trips = new AtomicLong();
+  private AtomicLong rejected = new AtomicLong();
+
+  public CircuitBreaker(String name, Properties settings) {
+    this.name = name;
+    threshold = Math.max(0, ConnectionPool.getInt(settings, FAILURE_THRESHOLD, 5));
+    openTime = Math.max(0, ConnectionPool.getInt(settings, OPEN_TIME, 10000));
+  }
+
+  public long getOpenTime() {
+    return openTime;
+  }
+
+  /**
+   * Throws at once if the breaker is open.  With <code>probeHere</code>
+   * the first caller after the open time passes is let through as the
+   * probe, for pools with no housekeeping thread to probe from.
+   */
+  public void check(boolean probeHere) throws SQLException {
+    if (state.get() == State.CLOSED) {
+      return;
+    }
+    if (probeHere && startProbe()) {
+      return;
+    }
+    rejected.incrementAndGet();
+    long wait = Math.max(0, openedAt + openTime - System.currentTimeMillis());
+    throw new SQLTransientConnectionException("Datasource '" + name + "' is unreachable, failing at once " +
+            "instead of waiting on it (last error: " + lastError + "), it will be tried again in " + wait + " ms",
+            "08001");
+  }
+
+  /**
+   * Moves an open breaker whose open time has passed to half-open, and
+   * returns whether it did.  The caller then tries a connection and
+   * reports how it went.
+   */
+  public boolean startProbe() {
+    return state.get() == State.OPEN && System.currentTimeMillis() - openedAt >= openTime &&
+            state.compareAndSet(State.OPEN, State.HALF_OPEN);
+  }
+
+  /**
+   * Counts a connection failure, and returns whether it opened the
+   * breaker.
+   */
+  public boolean failure(Throwable e) {
+    lastError = String.valueOf(e.getMessage());
+    if (threshold == 0) {
+      return false;
+    }
+    if (state.compareAndSet(State.HALF_OPEN, State.OPEN)) {
+      openedAt = System.currentTimeMillis();
+      return false;
+    }
+    if (failures.incrementAndGet() >= threshold && state.compareAndSet(State.CLOSED, State.OPEN)) {
+      openedAt = System.currentTimeMillis();
+      trips.incrementAndGet();
+      Log.log(Log.Level.ERROR, "Datasource '" + name + "' is unreachable after " + threshold +
+              " connection failures in a row, failing its requests at once until it answers again", null,
+              "datasource", name, "error", lastError);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Records that the database answered, closing the breaker if it was
+   * open.  Called for every connection handed back, so it only reads
+   * unless something changes.
+   */
+  public void success() {
+    if (failures.get() != 0) failures.set(0);
+    State current = state.get();
+    if (current != State.CLOSED && state.compareAndSet(current, State.CLOSED)) {
+      Log.log(Log.Level.WARN, "Datasource '" + name + "' is answering again", null, "datasource", name);
+    }
+  }
+
+  public State getState() { return state.get(); }
+  public long getTripCount() { return trips.get(); }
+  public long getRejectedCount() { return rejected.get(); }
+}
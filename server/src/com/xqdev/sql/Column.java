@@ -0,0 +1,148 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.sql.*;
+import org.jdom.Verifier;
+
+/**
+ * What we need to know about one result set column to write its values:
+ * the element name, the SQL type, and which getter to read it with.
+ * These are worked out once per result set by {@link #describe}, since
+ * some drivers make every <code>ResultSetMetaData</code> call expensive
+ * and the answers never change from row to row.
+ */
+class Column {
+
+  /**
+   * How a column's values are read from the result set, and the XML
+   * Schema type they're reported as when typed results are asked for.
+   */
+  enum Kind {
+    STRING("xs:string"),             // getString
+    LONG("xs:long"),                 // getLong
+    DECIMAL("xs:decimal"),           // getBigDecimal
+    DOUBLE("xs:double"),             // getDouble
+    REAL("xs:float"),                // getFloat
+    BOOLEAN("xs:boolean"),           // getBoolean
+    DATE("xs:date"),                 // getDate when typed, else getString
+    TIME("xs:time"),                 // getTime when typed, else getString
+    TIMESTAMP("xs:dateTime"),        // getTimestamp when typed, else getString
+    BLOB("xs:base64Binary"),         // getBlob, written as Base64
+    BINARY_STREAM("xs:base64Binary"), // getBinaryStream, written as Base64
+    CHARACTER_STREAM("xs:string"),   // getCharacterStream
+    UNKNOWN(null);                   // a type the driver can't describe
+
+    final String xsdType;
+
+    Kind(String xsdType) {
+      this.xsdType = xsdType;
+    }
+  }
+
+  int index;      // 1-based, as JDBC counts
+  String label;   // the name the database gave
+  String name;    // label made into a legal XML element name
+  int sqlType;
+  Kind kind;
+
+  static Column[] describe(ResultSetMetaData rsmd) throws SQLException {
+    Column[] columns = new Column[rsmd.getColumnCount()];
+    for (int i = 0; i < columns.length; i++) {
+      Column column = new Column();
+      column.index = i + 1;
+      column.label = rsmd.getColumnName(column.index);
+      column.name = toXmlName(column.label, column.index);
+      column.sqlType = rsmd.getColumnType(column.index);
+      column.kind = kindOf(rsmd, column.index, column.sqlType);
+      columns[i] = column;
+    }
+    return columns;
+  }
+
+  private static Kind kindOf(ResultSetMetaData rsmd, int index, int sqlType) throws SQLException {
+    String typeName = rsmd.getColumnTypeName(index);
+    if ("BLOB".equalsIgnoreCase(typeName)) return Kind.BLOB;
+    if ("UNKNOWN".equalsIgnoreCase(typeName)) return Kind.UNKNOWN;
+
+    switch (sqlType) {
+      case Types.TINYINT:
+      case Types.SMALLINT:
+      case Types.INTEGER:
+        return Kind.LONG;
+      case Types.BIGINT:
+        // An unsigned BIGINT can be too big for a long
+        return rsmd.isSigned(index) ? Kind.LONG : Kind.DECIMAL;
+      case Types.DECIMAL:
+      case Types.NUMERIC:
+        return Kind.DECIMAL;
+      case Types.DOUBLE:
+      case Types.FLOAT:
+        return Kind.DOUBLE;
+      case Types.REAL:
+        return Kind.REAL;
+      case Types.BOOLEAN:
+        return Kind.BOOLEAN;
+      case Types.DATE:
+        return Kind.DATE;
+      case Types.TIME:
+        return Kind.TIME;
+      case Types.TIMESTAMP:
+        return Kind.TIMESTAMP;
+      case Types.BLOB:
+        return Kind.BLOB;
+      case Types.LONGVARBINARY:
+        return Kind.BINARY_STREAM;
+      case Types.CLOB:
+      case Types.NCLOB:
+      case Types.LONGVARCHAR:
+        return Kind.CHARACTER_STREAM;
+      default:
+        return Kind.STRING;
+    }
+  }
+
+  /**
+   * Column names aren't guaranteed to be legal XML names ("count(*)",
+   * "2nd value", "order id"), so anything that can't appear in a name is
+   * replaced with an underscore, and a name that can't start with its
+   * first character gets an underscore in front.  Colons go too, since
+   * the result is used as an unprefixed local name.
+   */
+  static String toXmlName(String label, int index) {
+    if (label == null || label.length() == 0) {
+      return "column" + index;
+    }
+    if (Verifier.checkElementName(label) == null && label.indexOf(':') < 0) {
+      return label;  // the usual case
+    }
+    StringBuffer buf = new StringBuffer(label.length() + 1);
+    if (!Verifier.isXMLNameStartCharacter(label.charAt(0)) || label.charAt(0) == ':') {
+      buf.append('_');
+    }
+    for (int i = 0; i < label.length(); i++) {
+      char c = label.charAt(i);
+      buf.append(Verifier.isXMLNameCharacter(c) && c != ':' ? c : '_');
+    }
+    return buf.toString();
+  }
+}
@@ -0,0 +1,247 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+import javax.servlet.http.*;
+
+/**
+ * Compresses responses for clients that send an Accept-Encoding of gzip or
+ * deflate, and uncompresses request bodies sent with a Content-Encoding of
+ * either.  Results are mostly repeated element names and short values, so
+ * they shrink ten to twenty times, which is what matters when the client
+ * is in another data center.
+ *
+ * Responses are compressed as they stream, but the first
+ * <code>compression-threshold</code> bytes (default 2048) are held back
+ * first: a response that ends within them goes out as is, since for a
+ * packet or two compressing costs more time than it saves.
+ * <code>compression-level</code> runs from 1 (fastest) to 9 (smallest),
+ * default 6, and 0 turns response compression off.
+ */
+class Compression {
+
+  public static final String THRESHOLD = "compression-threshold";
+  public static final String LEVEL = "compression-level";
+
+  static final String GZIP = "gzip";
+  static final String DEFLATE = "deflate";
+
+  private int threshold;
+  private int level;
+
+  public Compression(Properties settings) {
+    threshold = Math.max(0, ConnectionPool.getInt(settings, THRESHOLD, 2048));
+    level = Math.min(9, ConnectionPool.getInt(settings, LEVEL, 6));
+  }
+
+  /**
+   * Returns the stream to write the response body to: the servlet's own,
+   * or one that compresses into it if the client accepts that.  Either
+   * way it must be closed once the body is written.
+   */
+  public ResponseStream open(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    String encoding = level > 0 ? negotiate(req.getHeader("Accept-Encoding")) : null;
+    if (level > 0) {
+      // Caches must not hand a compressed response to a client that didn't ask for one
+      res.setHeader("Vary", "Accept-Encoding");
+    }
+    return new ResponseStream(res, encoding, encoding == null ? 0 : threshold, level);
+  }
+
+  /**
+   * Picks gzip or deflate from an Accept-Encoding header, or returns null
+   * for neither.  A q of 0 rules an encoding out, "*" stands for any not
+   * listed, and gzip wins a tie.
+   */
+  static String negotiate(String accept) {
+    if (accept == null) {
+      return null;
+    }
+    float gzip = -1, deflate = -1, any = -1;
+    for (String part : accept.split(",")) {
+      String[] params = part.split(";");
+      String name = params[0].trim().toLowerCase();
+      float q = 1;
+      for (int i = 1; i < params.length; i++) {
+        String param = params[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            q = Float.parseFloat(param.substring(2).trim());
+          }
+          catch (NumberFormatException e) {
+            q = 0;
+          }
+        }
+      }
+      if (name.equals(GZIP) || name.equals("x-gzip")) gzip = Math.max(gzip, q);
+      else if (name.equals(DEFLATE)) deflate = Math.max(deflate, q);
+      else if (name.equals("*")) any = q;
+    }
+    if (gzip < 0) gzip = any;
+    if (deflate < 0) deflate = any;
+    if (gzip > 0 && gzip >= deflate) return GZIP;
+    if (deflate > 0) return DEFLATE;
+    return null;
+  }
+
+  /**
+   * Returns the request body, uncompressed if the client compressed it.
+   */
+  public static InputStream requestBody(HttpServletRequest req) throws IOException {
+    String encoding = req.getHeader("Content-Encoding");
+    InputStream in = req.getInputStream();
+    if (encoding == null || encoding.trim().length() == 0 || encoding.trim().equalsIgnoreCase("identity")) {
+      return in;
+    }
+    encoding = encoding.trim().toLowerCase();
+    if (encoding.equals(GZIP) || encoding.equals("x-gzip")) {
+      return new GZIPInputStream(in, 8192);
+    }
+    if (encoding.equals(DEFLATE)) {
+      return new InflaterInputStream(in, new Inflater(), 8192);
+    }
+    throw new IOException("Unsupported Content-Encoding '" + encoding + "', use gzip or deflate");
+  }
+
+  /**
+   * The response body.  Bytes are held until there are more than the
+   * threshold, then the Content-Encoding header is set and everything
+   * from there on is compressed.  Nothing reaches the servlet's stream
+   * before that, so the header can still be set.
+   */
+  static class ResponseStream extends OutputStream {
+    private HttpServletResponse res;
+    private String encoding;
+    private int level;
+    private byte[] held;
+    private int heldCount = 0;
+    private OutputStream out;        // the servlet's stream, once writing has started
+    private DeflaterOutputStream deflater;
+    private long wireBytes = 0;
+    private boolean closed = false;
+
+    ResponseStream(HttpServletResponse res, String encoding, int threshold, int level) {
+      this.res = res;
+      this.encoding = encoding;
+      this.level = level;
+      this.held = new byte[threshold];
+    }
+
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (out == null) {
+        if (heldCount + len <= held.length) {
+          System.arraycopy(b, off, held, heldCount, len);
+          heldCount += len;
+          return;
+        }
+        start(encoding);
+      }
+      if (deflater != null) {
+        deflater.write(b, off, len);
+      }
+      else {
+        out.write(b, off, len);
+      }
+    }
+
+    /**
+     * Bytes still under the threshold stay held, a flush only pushes out
+     * what's already on its way.
+     */
+    public void flush() throws IOException {
+      if (deflater != null) deflater.flush();
+      else if (out != null) out.flush();
+    }
+
+    /**
+     * Finishes the body.  Closing the compressor also frees its native
+     * memory, so this must happen even if writing failed.
+     */
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (out == null) {
+        // Small enough to go as it is
+        start(null);
+      }
+      if (deflater != null) {
+        deflater.close();
+      }
+      out.flush();
+    }
+
+    /**
+     * Returns whether the body is being compressed.
+     */
+    public boolean isCompressed() {
+      return deflater != null;
+    }
+
+    /**
+     * Returns the bytes sent to the client so far, after compression.
+     */
+    public long getWireBytes() {
+      return wireBytes;
+    }
+
+    private void start(String encoding) throws IOException {
+      final OutputStream servlet = res.getOutputStream();
+      out = new OutputStream() {
+        public void write(int b) throws IOException {
+          servlet.write(b);
+          wireBytes++;
+        }
+        public void write(byte[] b, int off, int len) throws IOException {
+          servlet.write(b, off, len);
+          wireBytes += len;
+        }
+        public void flush() throws IOException {
+          servlet.flush();
+        }
+      };
+      if (encoding != null) {
+        res.setHeader("Content-Encoding", encoding);
+        final int level = this.level;
+        if (encoding.equals(GZIP)) {
+          deflater = new GZIPOutputStream(out, 8192) { { def.setLevel(level); } };
+        }
+        else {
+          deflater = new DeflaterOutputStream(out) { { def.setLevel(level); } };
+        }
+        deflater.write(held, 0, heldCount);
+      }
+      else {
+        out.write(held, 0, heldCount);
+      }
+      held = null;
+    }
+  }
+}
@@ -23,87 +23,516 @@ package com.xqdev.sql;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /**
- * Basic database connection pool class.
+ * Bounded database connection pool.
+ *
+ * Free connections sit on a lock-free deque, and borrowers are admitted
+ * through a fair semaphore sized to the pool maximum.  A burst of callers
+ * therefore waits its turn (up to the wait timeout) instead of opening
+ * more database sessions.  A housekeeping task closes connections that
+ * have sat idle too long or outlived their maximum lifetime, and keeps
+ * the pool topped up to its minimum size.
+ *
+ * Connections aren't validated as they're handed out, which would double
+ * the round trips of a short query.  Instead another housekeeping task
+ * checks the idle ones with <code>Connection.isValid</code> (or the
+ * validation query, for drivers without it), skipping any used within
+ * the last <code>pool-validation-interval</code>, since a connection that
+ * just worked needs no checking.  A connection that fails a statement
+ * with a 08 SQLState is closed rather than put back.  A
+ * {@link CircuitBreaker} makes requests fail at once while the database
+ * can't be reached.
+ *
+ * Housekeeping waits on the database, so it should run on a
+ * {@link Housekeeper} of the pool's own rather than the servlet's shared
+ * one.  A connection is only opened, or taken off the deque to be
+ * checked, by someone holding a permit, which keeps the pool within its
+ * maximum size.
+ *
+ * Settings are read from the servlet init-params:
+ * <ul>
+ * <li><code>pool-min-size</code> - connections kept open even when idle (default 0)
+ * <li><code>pool-max-size</code> - most connections open at once (default 20)
+ * <li><code>pool-wait-timeout</code> - ms to wait for a free connection (default 30000)
+ * <li><code>pool-idle-timeout</code> - ms before an idle connection is closed (default 600000)
+ * <li><code>pool-max-lifetime</code> - ms before any connection is retired, 0 for never (default 1800000)
+ * <li><code>pool-eviction-interval</code> - ms between housekeeping runs (default 60000)
+ * <li><code>statement-cache-size</code> - prepared statements cached per connection, 0 to disable (default 20)
+ * <li><code>pool-validation-interval</code> - ms between checks of idle connections, 0 to check each one
+ *     as it's handed out instead (default 30000)
+ * <li><code>pool-validation-timeout</code> - seconds a check may take (default 5)
+ * <li><code>pool-validation-query</code> - run to check a connection if the driver lacks isValid (default "select 1")
+ * </ul>
+ * and the {@link CircuitBreaker} settings.
  */
 public class ConnectionPool {
-  private Hashtable connections = new Hashtable();
+
+  public static final String MIN_SIZE = "pool-min-size";
+  public static final String MAX_SIZE = "pool-max-size";
+  public static final String WAIT_TIMEOUT = "pool-wait-timeout";
+  public static final String IDLE_TIMEOUT = "pool-idle-timeout";
+  public static final String MAX_LIFETIME = "pool-max-lifetime";
+  public static final String EVICTION_INTERVAL = "pool-eviction-interval";
+  public static final String STATEMENT_CACHE_SIZE = "statement-cache-size";
+  public static final String VALIDATION_QUERY = "pool-validation-query";
+  public static final String VALIDATION_INTERVAL = "pool-validation-interval";
+  public static final String VALIDATION_TIMEOUT = "pool-validation-timeout";
+
   private Properties props;
+  private String url;
+
+  private int minSize;
+  private int maxSize;
+  private long waitTimeout;
+  private long idleTimeout;
+  private long maxLifetime;
+  private int statementCacheSize;
+  private String validationQuery;
+  private long validationInterval;
+  private int validationTimeout;
+  private volatile boolean useIsValid = true;
+  private CircuitBreaker breaker;
+
+  // Most recently returned connections sit at the head, so the ones at
+  // the tail are the ones that have been idle longest
+  private ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<PooledConnection>();
+  private ConcurrentHashMap<Connection, PooledConnection> borrowed = new ConcurrentHashMap<Connection, PooledConnection>();
+  private Semaphore permits;
+  private AtomicInteger size = new AtomicInteger();
+  private AtomicLong created = new AtomicLong();
+  private AtomicLong destroyed = new AtomicLong();
+  private AtomicLong statementHits = new AtomicLong();
+  private AtomicLong statementMisses = new AtomicLong();
+  private AtomicLong waitTimeouts = new AtomicLong();
+  private AtomicLong validationFailures = new AtomicLong();
+  private Histogram waitTimes = new Histogram();
+  private ScheduledFuture<?> evictor;
+  private ScheduledFuture<?> validator;
+  private ScheduledFuture<?> prober;
+  private volatile boolean closed = false;
 
   public ConnectionPool(String driver, String url,
                         String user, String password)
                    throws ClassNotFoundException {
-    props = new Properties();
-    props.put("driver", driver);
-    props.put("url", url);
-    props.put("user", user);
-    props.put("password", password);
-    initializePool(props);
+    this(driver, url, user, password, new Properties(), null);
   }
 
-  public Connection getConnection() throws SQLException {
-    Connection con = null;
+  public ConnectionPool(String driver, String url,
+                        String user, String password,
+                        Properties settings, Housekeeper housekeeper)
+                   throws ClassNotFoundException {
+    this(DatasourceRegistry.DEFAULT, driver, url, user, password, settings, housekeeper);
+  }
 
-    Enumeration cons = connections.keys();
-
-    synchronized (connections) {
-      while(cons.hasMoreElements()) {
-        con = (Connection)cons.nextElement();
-
-        Boolean b = (Boolean)connections.get(con);
-        if (b == Boolean.FALSE) {
-          // So we found an unused connection.                       
-          // Test its integrity with a quick setAutoCommit(true) call.
-          // For production use, more testing should be performed,   
-          // such as executing a simple query.                       
-          Statement stmt = null;
-          try {
-            stmt = con.createStatement();
-            stmt.execute(MLSQL.TRY_DATABASE_CONNECTION);
-          }
-          catch(SQLException e) {
-            // Problem with the connection, replace it.              
-            // First close the connection to be replaced to avoid leaks
-            con.close();
-            connections.remove(con);
-            con = getNewConnection();
-          }
-          finally {
-            if (stmt != null) {
-              try { stmt.close(); } catch (SQLException ignored) { }
-            }
+  /**
+   * @param name the datasource's name, for messages
+   * @param housekeeper runs the eviction, validation and probe tasks,
+   *                    or null for none
+   */
+  public ConnectionPool(String name, String driver, String url,
+                        String user, String password,
+                        Properties settings, Housekeeper housekeeper)
+                   throws ClassNotFoundException {
+    this.url = url;
+    props = new Properties();
+    if (user != null) props.put("user", user);
+    if (password != null) props.put("password", password);
+
+    minSize = getInt(settings, MIN_SIZE, 0);
+    maxSize = Math.max(1, getInt(settings, MAX_SIZE, 20));
+    minSize = Math.min(minSize, maxSize);
+    waitTimeout = getInt(settings, WAIT_TIMEOUT, 30000);
+    idleTimeout = getInt(settings, IDLE_TIMEOUT, 600000);
+    maxLifetime = getInt(settings, MAX_LIFETIME, 1800000);
+    statementCacheSize = Math.max(0, getInt(settings, STATEMENT_CACHE_SIZE, 20));
+    validationQuery = settings.getProperty(VALIDATION_QUERY, "").trim();
+    if (validationQuery.length() == 0) {
+      // Not every database can select without a from clause (Derby and
+      // DB2 want "values 1", Oracle "select 1 from dual")
+      validationQuery = MLSQL.TRY_DATABASE_CONNECTION;
+    }
+    validationInterval = Math.max(0, getInt(settings, VALIDATION_INTERVAL, 30000));
+    validationTimeout = Math.max(1, getInt(settings, VALIDATION_TIMEOUT, 5));
+    breaker = new CircuitBreaker(name, settings);
+    permits = new Semaphore(maxSize, true);
+
+    initializePool(driver);
+
+    if (housekeeper != null) {
+      evictor = housekeeper.schedule(new Runnable() {
+        public void run() {
+          evict();
+        }
+      }, getInt(settings, EVICTION_INTERVAL, 60000));
+      if (validationInterval > 0) {
+        validator = housekeeper.schedule(new Runnable() {
+          public void run() {
+            validateIdle();
           }
-          // Update the Hashtable to show this one's taken
-          connections.put(con, Boolean.TRUE);
-          // Return the connection                                   
-          return con;
+        }, validationInterval);
+      }
+      prober = housekeeper.schedule(new Runnable() {
+        public void run() {
+          probe();
         }
+      }, Math.max(100, breaker.getOpenTime()));
+    }
+  }
+
+  public Connection getConnection() throws SQLException {
+    if (closed) {
+      throw new SQLException("Connection pool has been shut down");
+    }
+    // Fails at once, before queueing for a permit, while the database is down
+    breaker.check(prober == null);
+    long start = System.nanoTime();
+    try {
+      if (!permits.tryAcquire(waitTimeout, TimeUnit.MILLISECONDS)) {
+        waitTimeouts.incrementAndGet();
+        throw new SQLException("Timed out after " + waitTimeout +
+                " ms waiting for a connection, all " + maxSize + " are in use");
       }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a connection");
+    }
+    finally {
+      waitTimes.record(System.nanoTime() - start);
+    }
 
-      // If we get here, there were no free connections.  Make one more.
-      // A more robust connection pool would have a maximum size limit,
-      // and would reclaim connections after some timeout period
-      con = getNewConnection();
-      connections.put(con, Boolean.TRUE);
-      return con;
+    // Holding a permit guarantees we're allowed a connection, the rest
+    // needs no locking at all
+    try {
+      PooledConnection pc = takeIdle();
+      if (pc == null) {
+        pc = newConnection();
+      }
+      borrowed.put(pc.con, pc);
+      return pc.con;
+    }
+    catch (SQLException e) {
+      permits.release();
+      throw e;
+    }
+    catch (RuntimeException e) {
+      permits.release();
+      throw e;
     }
   }
 
   public void returnConnection(Connection returned) {
-    if (connections.containsKey(returned)) {
-      connections.put(returned, Boolean.FALSE);
+    returnConnection(returned, false);
+  }
+
+  /**
+   * Hands back a borrowed connection.  One that's <code>broken</code>
+   * (a statement on it failed with a 08 SQLState) is closed, and counts
+   * against the circuit breaker.
+   */
+  public void returnConnection(Connection returned, boolean broken) {
+    PooledConnection pc = borrowed.remove(returned);
+    if (pc == null) return;  // not one of ours, or returned twice
+
+    pc.lastUsed = System.currentTimeMillis();
+    if (broken) {
+      destroy(pc);
+      if (breaker.failure(new SQLException("A connection broke while in use"))) closeIdle();
+    }
+    else if (closed || isExpired(pc, pc.lastUsed) || isClosed(pc)) {
+      breaker.success();
+      destroy(pc);
+    }
+    else {
+      breaker.success();
+      idle.offerFirst(pc);
+    }
+    permits.release();
+  }
+
+  /**
+   * Closes the idle connections and stops housekeeping.  Connections still
+   * borrowed are closed as they're returned.
+   */
+  public void close() {
+    closed = true;
+    if (evictor != null) evictor.cancel(false);
+    if (validator != null) validator.cancel(false);
+    if (prober != null) prober.cancel(false);
+    closeIdle();
+  }
+
+  private void closeIdle() {
+    PooledConnection pc;
+    while ((pc = idle.poll()) != null) {
+      destroy(pc);
+    }
+  }
+
+  /**
+   * Returns the statement cache belonging to a connection borrowed from
+   * this pool.
+   */
+  StatementCache getStatementCache(Connection con) {
+    PooledConnection pc = borrowed.get(con);
+    if (pc == null) {
+      throw new IllegalArgumentException("Connection was not borrowed from this pool");
+    }
+    return pc.statements;
+  }
+
+  public int getMinSize() { return minSize; }
+  public int getMaxSize() { return maxSize; }
+  public int getActiveCount() { return borrowed.size(); }
+  public int getIdleCount() { return idle.size(); }
+  public int getWaitingCount() { return permits.getQueueLength(); }
+  public long getCreatedCount() { return created.get(); }
+  public long getDestroyedCount() { return destroyed.get(); }
+  public int getStatementCacheSize() { return statementCacheSize; }
+  public long getStatementCacheHits() { return statementHits.get(); }
+  public long getStatementCacheMisses() { return statementMisses.get(); }
+  public long getWaitTimeoutCount() { return waitTimeouts.get(); }
+  public long getValidationFailureCount() { return validationFailures.get(); }
+  CircuitBreaker getBreaker() { return breaker; }
+  Histogram getWaitTimes() { return waitTimes; }
+
+  /**
+   * Pops a free connection that hasn't expired, validating it first only
+   * if background validation is off.  Runs without any lock held, the
+   * deque hands each connection to exactly one caller.
+   */
+  private PooledConnection takeIdle() {
+    long now = System.currentTimeMillis();
+    PooledConnection pc;
+    while ((pc = idle.pollFirst()) != null) {
+      if (!isExpired(pc, now) && (validationInterval > 0 || isValid(pc))) {
+        return pc;
+      }
+      // Problem with the connection, close it to avoid leaks and try the next
+      destroy(pc);
+    }
+    return null;
+  }
+
+  private boolean isValid(PooledConnection pc) {
+    if (useIsValid) {
+      try {
+        return pc.con.isValid(validationTimeout);
+      }
+      catch (SQLException e) {
+        // Not supported by this driver, fall back to the query
+      }
+      catch (AbstractMethodError e) {
+        // A driver older than JDBC 4
+      }
+      useIsValid = false;
+    }
+    Statement stmt = null;
+    try {
+      stmt = pc.con.createStatement();
+      stmt.setQueryTimeout(validationTimeout);
+      stmt.execute(validationQuery);
+      return true;
+    }
+    catch (SQLException e) {
+      return false;
+    }
+    finally {
+      if (stmt != null) {
+        try { stmt.close(); } catch (SQLException ignored) { }
+      }
     }
   }
 
-  private void initializePool(Properties props)
+  /**
+   * Housekeeping: checks the idle connections that haven't been used or
+   * checked within the validation interval, coldest first.  Each is taken
+   * off the deque while it's checked, so no request can borrow it
+   * meanwhile, and put back at the cold end if it passes.  A permit is
+   * held during each check, so a request that finds the deque empty
+   * meanwhile and opens a connection can't take the pool past its maximum.
+   */
+  private void validateIdle() {
+    if (breaker.getState() != CircuitBreaker.State.CLOSED) {
+      return;  // nothing will answer, the probe will find out when it does
+    }
+    long now = System.currentTimeMillis();
+    Iterator<PooledConnection> itr = idle.descendingIterator();
+    while (itr.hasNext() && !closed) {
+      PooledConnection pc = itr.next();
+      if (now - Math.max(pc.lastUsed, pc.lastChecked) < validationInterval) {
+        continue;  // used recently
+      }
+      if (!permits.tryAcquire()) {
+        return;  // every connection is wanted, check again next time
+      }
+      try {
+        if (!idle.removeLastOccurrence(pc)) {
+          continue;  // borrowed since we looked
+        }
+        boolean valid = isValid(pc);
+        if (valid && !closed && size.get() <= maxSize) {
+          pc.lastChecked = System.currentTimeMillis();
+          idle.offerLast(pc);
+        }
+        else {
+          if (!valid) validationFailures.incrementAndGet();
+          destroy(pc);
+        }
+      }
+      finally {
+        permits.release();
+      }
+    }
+  }
+
+  /**
+   * Housekeeping: while the circuit breaker is open, tries a new
+   * connection once its open time has passed.  One that opens closes the
+   * breaker, and joins the pool if a permit was free to open it under.
+   * Otherwise every connection is already out, so it's closed again.
+   */
+  private void probe() {
+    if (closed || !breaker.startProbe()) {
+      return;
+    }
+    boolean room = permits.tryAcquire();
+    try {
+      PooledConnection pc = newConnection();
+      if (room && !closed && size.get() <= maxSize) {
+        idle.offerFirst(pc);
+      }
+      else {
+        destroy(pc);
+      }
+    }
+    catch (SQLException e) {
+      // Counted by newConnection, the breaker stays open for another round
+    }
+    finally {
+      if (room) permits.release();
+    }
+  }
+
+  private boolean isExpired(PooledConnection pc, long now) {
+    return maxLifetime > 0 && now - pc.created > maxLifetime;
+  }
+
+  private boolean isClosed(PooledConnection pc) {
+    try {
+      return pc.con.isClosed();
+    }
+    catch (SQLException e) {
+      return true;
+    }
+  }
+
+  /**
+   * Housekeeping: retire idle and over-age connections from the cold end
+   * of the deque, and any beyond the maximum size, then top back up to the
+   * minimum size.
+   */
+  private void evict() {
+    long now = System.currentTimeMillis();
+    Iterator<PooledConnection> itr = idle.descendingIterator();
+    while (itr.hasNext()) {
+      PooledConnection pc = itr.next();
+      boolean idleTooLong = idleTimeout > 0 && now - pc.lastUsed > idleTimeout && size.get() > minSize;
+      if ((idleTooLong || isExpired(pc, now) || size.get() > maxSize) && idle.removeLastOccurrence(pc)) {
+        destroy(pc);
+      }
+    }
+
+    while (!closed && breaker.getState() == CircuitBreaker.State.CLOSED && permits.tryAcquire()) {
+      try {
+        if (size.get() >= minSize) {
+          break;
+        }
+        idle.offerLast(newConnection());
+      }
+      catch (SQLException e) {
+        Log.log("Unable to open connection to fill pool to its minimum size", e);
+        break;
+      }
+      finally {
+        permits.release();
+      }
+    }
+  }
+
+  private void initializePool(String driver)
                    throws ClassNotFoundException {
     // Load the driver
-    Class.forName(props.getProperty("driver"));
+    Class.forName(driver);
+  }
+
+  /**
+   * Opens a connection, telling the circuit breaker how it went.
+   */
+  private PooledConnection newConnection() throws SQLException {
+    // Counted before connecting, so housekeeping sees the connections
+    // still being opened and doesn't open more than the pool may hold
+    size.incrementAndGet();
+    Connection con = null;
+    try {
+      con = DriverManager.getConnection(url, props);
+    }
+    catch (SQLException e) {
+      if (breaker.failure(e)) closeIdle();
+      throw e;
+    }
+    finally {
+      if (con == null) size.decrementAndGet();
+    }
+    breaker.success();
+    PooledConnection pc = new PooledConnection(con,
+            new StatementCache(con, statementCacheSize, statementHits, statementMisses));
+    created.incrementAndGet();
+    return pc;
+  }
+
+  private void destroy(PooledConnection pc) {
+    size.decrementAndGet();
+    destroyed.incrementAndGet();
+    pc.statements.close();
+    try {
+      pc.con.close();
+    }
+    catch (SQLException ignored) { }
   }
 
-  private Connection getNewConnection() throws SQLException {
-    return DriverManager.getConnection(
-      props.getProperty("url"), props);
+  static int getInt(Properties settings, String name, int defaultValue) {
+    String value = settings.getProperty(name);
+    if (value == null || value.trim().length() == 0) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    }
+    catch (NumberFormatException e) {
+      Log.log("Warning: '" + name + "' setting is not a number: " + value + ", using " + defaultValue);
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Bookkeeping kept alongside each physical connection.
+   */
+  private static class PooledConnection {
+    Connection con;
+    StatementCache statements;
+    long created;
+    volatile long lastUsed;
+    volatile long lastChecked;
+
+    PooledConnection(Connection con, StatementCache statements) {
+      this.con = con;
+      this.statements = statements;
+      this.created = System.currentTimeMillis();
+      this.lastUsed = created;
+    }
   }
-}                                                                    
+}
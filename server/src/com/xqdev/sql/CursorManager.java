@@ -0,0 +1,216 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps select results open across requests, so a client can read a
+ * large result a page at a time instead of in one response.  A select
+ * with a <code>page-size</code> option opens a cursor and returns its
+ * first page, and "fetch" requests naming the cursor return the pages
+ * after that.  The cursor closes itself once its last row has gone out,
+ * or on a "close" request.
+ *
+ * A cursor pins a pooled connection, with auto-commit off so drivers
+ * that only honor the fetch size inside a transaction do, until it's
+ * closed.  To keep cursors from starving ordinary requests each
+ * datasource allows at most <code>cursor-max-open</code> (default 10) at
+ * once, and like transactions, a housekeeping task closes any cursor
+ * left idle longer than <code>cursor-idle-timeout</code> ms (default
+ * 60000).
+ */
+class CursorManager {
+
+  public static final String IDLE_TIMEOUT = "cursor-idle-timeout";
+  public static final String MAX_OPEN = "cursor-max-open";
+
+  private long idleTimeout;
+  private ConcurrentHashMap<String, Cursor> cursors = new ConcurrentHashMap<String, Cursor>();
+  private ConcurrentHashMap<DatasourceRegistry.Datasource, AtomicInteger> openCounts =
+          new ConcurrentHashMap<DatasourceRegistry.Datasource, AtomicInteger>();
+  private ScheduledFuture<?> reaper;
+
+  public CursorManager(long idleTimeout, Housekeeper housekeeper) {
+    this.idleTimeout = idleTimeout;
+    if (housekeeper != null && idleTimeout > 0) {
+      reaper = housekeeper.schedule(new Runnable() {
+        public void run() {
+          reap();
+        }
+      }, Math.max(1000, idleTimeout / 4));
+    }
+  }
+
+  /**
+   * Registers a cursor on a connection freshly borrowed from the
+   * datasource's pool.  The caller executes the query and fills in the
+   * cursor's statement and result set.  The returned cursor is already
+   * acquired by the caller.
+   */
+  public Cursor open(DatasourceRegistry.Datasource ds) throws SQLException {
+    AtomicInteger count = openCounts.get(ds);
+    if (count == null) {
+      openCounts.putIfAbsent(ds, new AtomicInteger());
+      count = openCounts.get(ds);
+    }
+    if (count.incrementAndGet() > ds.maxCursors) {
+      count.decrementAndGet();
+      throw new SQLException("Datasource '" + ds.name + "' is at its limit of " + ds.maxCursors +
+              " open cursors (" + MAX_OPEN + "), close or finish reading one first");
+    }
+
+    ConnectionPool pool;
+    Connection con;
+    try {
+      pool = ds.getPool();
+      con = pool.getConnection();
+    }
+    catch (SQLException e) {
+      count.decrementAndGet();
+      throw e;
+    }
+    try {
+      con.setAutoCommit(false);
+    }
+    catch (SQLException e) {
+      count.decrementAndGet();
+      pool.returnConnection(con);
+      throw e;
+    }
+    Cursor cursor = new Cursor(UUID.randomUUID().toString(), ds, pool, con);
+    cursor.busy.set(true);
+    cursors.put(cursor.id, cursor);
+    return cursor;
+  }
+
+  /**
+   * Claims the cursor for the calling request.  Only one request may read
+   * from a cursor at a time.  Pair with {@link #release} or
+   * {@link #close(Cursor)}.
+   */
+  public Cursor acquire(String id) throws SQLException {
+    Cursor cursor = cursors.get(id);
+    if (cursor == null) {
+      throw new SQLException("Unknown cursor '" + id + "', it may have been read to the end or closed after sitting idle");
+    }
+    if (!cursor.busy.compareAndSet(false, true)) {
+      throw new SQLException("Cursor '" + id + "' is in use by another request");
+    }
+    return cursor;
+  }
+
+  public void release(Cursor cursor) {
+    cursor.lastUsed = System.currentTimeMillis();
+    cursor.busy.set(false);
+  }
+
+  public void close(String id) throws SQLException {
+    close(acquire(id));
+  }
+
+  /**
+   * Closes an acquired cursor and gives its connection back to the pool.
+   */
+  public void close(Cursor cursor) {
+    if (!cursors.remove(cursor.id, cursor)) return;
+    if (cursor.rs != null) {
+      try {
+        cursor.rs.close();
+      }
+      catch (SQLException e) {
+        Log.log("Could not close the result set of cursor '" + cursor.id + "'", e);
+      }
+    }
+    if (cursor.stmt != null) {
+      try {
+        cursor.stmt.close();
+      }
+      catch (SQLException e) {
+        Log.log("Could not close the statement of cursor '" + cursor.id + "'", e);
+      }
+    }
+    try {
+      // Nothing was changed, this just ends the transaction the reads were in
+      cursor.con.rollback();
+      cursor.con.setAutoCommit(true);
+    }
+    catch (SQLException e) {
+      Log.log("Could not restore auto-commit after cursor '" + cursor.id + "'", e);
+    }
+    cursor.pool.returnConnection(cursor.con);
+    openCounts.get(cursor.ds).decrementAndGet();
+  }
+
+  /**
+   * Closes every open cursor, used at shutdown.
+   */
+  public void close() {
+    if (reaper != null) reaper.cancel(false);
+    for (Cursor cursor : cursors.values()) {
+      close(cursor);
+    }
+  }
+
+  public int getOpenCount() {
+    return cursors.size();
+  }
+
+  private void reap() {
+    long now = System.currentTimeMillis();
+    for (Cursor cursor : cursors.values()) {
+      if (now - cursor.lastUsed > idleTimeout && cursor.busy.compareAndSet(false, true)) {
+        Log.log("Closing cursor '" + cursor.id + "', idle for " + (now - cursor.lastUsed) + " ms");
+        close(cursor);
+      }
+    }
+  }
+
+  /**
+   * An open result set pinned across requests.
+   */
+  static class Cursor {
+    String id;
+    DatasourceRegistry.Datasource ds;
+    ConnectionPool pool;
+    Connection con;
+    PreparedStatement stmt;
+    ResultSet rs;
+    Column[] columns;
+    boolean typed;
+    int pageSize;
+    boolean onRow = false;  // rs is positioned on a row not yet sent
+    volatile long lastUsed = System.currentTimeMillis();
+    AtomicBoolean busy = new AtomicBoolean();
+
+    Cursor(String id, DatasourceRegistry.Datasource ds, ConnectionPool pool, Connection con) {
+      this.id = id;
+      this.ds = ds;
+      this.pool = pool;
+      this.con = con;
+    }
+  }
+}
@@ -0,0 +1,268 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * The databases one deployment can reach, by name.  Requests pick one
+ * with <code>&lt;sql:datasource&gt;</code> in their execute-options, or get
+ * the default.
+ *
+ * Datasources are listed in a properties file (or a Java XML properties
+ * file, if the name ends in ".xml") named by the <code>datasources</code>
+ * init-param, with keys prefixed by the datasource name:
+ * <pre>
+ *   oracle.driver=oracle.jdbc.OracleDriver
+ *   oracle.url=jdbc:oracle:thin:@dbhost:1521:orcl
+ *   oracle.user=scott
+ *   oracle.password=tiger
+ *   oracle.pool-validation-query=select 1 from dual
+ *   mysql.driver=com.mysql.jdbc.Driver
+ *   mysql.url=jdbc:mysql://dbhost/test
+ *   mysql.pool-max-size=50
+ *   default-datasource=oracle
+ * </pre>
+ * Any pool, statement cache, {@link CircuitBreaker}, {@link Throttle} or
+ * {@link FetchSizer} setting can be given per datasource, such as
+ * <code>mysql.fetch-streaming=true</code>.  The ones left out come from
+ * the servlet's init-params.  The single datasource described by the
+ * driver/url/user/password init-params, as in earlier versions, is still
+ * supported and is named "default".
+ *
+ * Each datasource gets its own pool, created the first time a request
+ * asks for it.  Nothing connects at startup, so a database that's down
+ * neither delays deployment nor holds up requests for the others.  For
+ * the same reason each pool's housekeeping, which waits on its database,
+ * runs on a thread of its own.
+ */
+class DatasourceRegistry {
+
+  public static final String DEFAULT = "default";
+  public static final String DEFAULT_DATASOURCE = "default-datasource";
+
+  private Map<String, Datasource> datasources = new LinkedHashMap<String, Datasource>();
+  private String defaultName;
+  private Housekeeper timer;
+
+  /**
+   * @param settings the servlet init-params, used for the legacy single
+   *                 datasource and as defaults for the others
+   * @param file the datasources file, or null if there isn't one
+   * @param timer cancels statements that overrun their query-timeout
+   */
+  public DatasourceRegistry(Properties settings, Properties file, Housekeeper timer) {
+    this.timer = timer;
+
+    if (settings.getProperty("driver") != null || settings.getProperty("url") != null) {
+      add(new Datasource(DEFAULT, settings));
+    }
+    if (file != null) {
+      for (String name : namesIn(file)) {
+        add(new Datasource(name, settingsFor(name, file, settings)));
+      }
+    }
+
+    defaultName = file != null ? file.getProperty(DEFAULT_DATASOURCE) : null;
+    if (defaultName == null) {
+      defaultName = settings.getProperty(DEFAULT_DATASOURCE);
+    }
+    if (defaultName == null && datasources.size() == 1) {
+      defaultName = datasources.keySet().iterator().next();
+    }
+    if (defaultName == null) {
+      defaultName = DEFAULT;
+    }
+
+    if (datasources.isEmpty()) {
+      Log.log("Error: no datasources are configured, set the 'driver' and 'url' init parameters " +
+              "or name a datasources file with the 'datasources' init parameter");
+    }
+  }
+
+  /**
+   * Returns the named datasource, or the default one if the name is
+   * empty.
+   */
+  public Datasource get(String name) throws SQLException {
+    if (name == null || name.length() == 0) {
+      name = defaultName;
+    }
+    Datasource ds = datasources.get(name);
+    if (ds == null) {
+      throw new SQLException("No datasource named '" + name + "' is configured");
+    }
+    return ds;
+  }
+
+  public Collection<Datasource> getDatasources() {
+    return Collections.unmodifiableCollection(datasources.values());
+  }
+
+  public void close() {
+    for (Datasource ds : datasources.values()) {
+      ds.close();
+    }
+  }
+
+  private void add(Datasource ds) {
+    if (datasources.containsKey(ds.name)) {
+      Log.log("Warning: datasource '" + ds.name + "' is configured twice, using the last one");
+    }
+    datasources.put(ds.name, ds);
+  }
+
+  /**
+   * The names listed by a "datasources" key, or else every prefix that
+   * has a ".url".
+   */
+  private static Collection<String> namesIn(Properties file) {
+    Set<String> names = new LinkedHashSet<String>();
+    String list = file.getProperty("datasources");
+    if (list != null) {
+      for (String name : list.split(",")) {
+        if (name.trim().length() > 0) names.add(name.trim());
+      }
+      return names;
+    }
+    for (Enumeration<?> e = file.propertyNames(); e.hasMoreElements(); ) {
+      String key = (String) e.nextElement();
+      if (key.endsWith(".url")) {
+        names.add(key.substring(0, key.length() - ".url".length()));
+      }
+    }
+    return names;
+  }
+
+  private static Properties settingsFor(String name, Properties file, Properties defaults) {
+    Properties settings = new Properties(defaults);
+    String prefix = name + ".";
+    for (Enumeration<?> e = file.propertyNames(); e.hasMoreElements(); ) {
+      String key = (String) e.nextElement();
+      if (key.startsWith(prefix)) {
+        settings.setProperty(key.substring(prefix.length()), file.getProperty(key));
+      }
+    }
+    // Connection details are never inherited from the legacy datasource
+    for (String key : new String[] { "driver", "url", "user", "password" }) {
+      if (!settings.containsKey(key)) {
+        settings.setProperty(key, "");
+      }
+    }
+    return settings;
+  }
+
+  /**
+   * One named database and, once it has been used, its pool.
+   */
+  class Datasource {
+    String name;
+    int maxCursors;
+    Throttle throttle;
+    FetchSizer fetchSizer;
+    private String driver;
+    private String url;
+    private String user;
+    private String password;
+    private Properties settings;
+    private String problem;
+    private volatile ConnectionPool pool;
+    private Housekeeper checker;
+    private boolean closed = false;
+
+    Datasource(String name, Properties settings) {
+      this.name = name;
+      this.settings = settings;
+      driver = blankToNull(settings.getProperty("driver"));
+      url = blankToNull(settings.getProperty("url"));
+      if (driver != null) driver = driver.trim();
+      if (url != null) url = url.trim();
+      user = blankToNull(settings.getProperty("user"));
+      password = blankToNull(settings.getProperty("password"));
+      maxCursors = ConnectionPool.getInt(settings, CursorManager.MAX_OPEN, 10);
+      throttle = new Throttle(name, settings, timer);
+      fetchSizer = new FetchSizer(settings);
+      if (driver == null) {
+        problem = "Datasource '" + name + "' has no driver configured";
+      }
+      else if (url == null) {
+        problem = "Datasource '" + name + "' has no url configured";
+      }
+      if (problem != null) {
+        Log.log("Error: " + problem);
+      }
+    }
+
+    /**
+     * Returns the datasource's pool, creating it on first use.  Creating
+     * a pool only loads the driver class, connections are opened as
+     * requests need them.
+     */
+    public ConnectionPool getPool() throws SQLException {
+      ConnectionPool p = pool;
+      if (p != null) {
+        return p;
+      }
+      synchronized (this) {
+        if (closed) {
+          throw new SQLException("Datasource '" + name + "' has been shut down");
+        }
+        if (problem != null) {
+          throw new SQLException(problem);
+        }
+        if (pool == null) {
+          checker = new Housekeeper("MLSQL pool checker (" + name + ")");
+          try {
+            pool = new ConnectionPool(name, driver, url, user, password, settings, checker);
+          }
+          catch (ClassNotFoundException e) {
+            checker.shutdown();
+            checker = null;
+            // Not remembered, so dropping the driver jar in and reloading fixes it
+            String s = "Could not load driver class '" + driver + "' for datasource '" + name + "'";
+            Log.log(s);
+            throw new SQLException(s);
+          }
+        }
+        return pool;
+      }
+    }
+
+    /**
+     * Returns the pool if one has been created, without creating it.
+     */
+    public ConnectionPool getPoolIfStarted() {
+      return pool;
+    }
+
+    synchronized void close() {
+      closed = true;
+      if (pool != null) pool.close();
+      if (checker != null) checker.shutdown();
+    }
+  }
+
+  private static String blankToNull(String s) {
+    return s == null || s.trim().length() == 0 ? null : s;
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Parses the xs:date, xs:time and xs:dateTime lexical forms the XQuery
+ * side sends, e.g. <code>2006-10-17-07:00</code>,
+ * <code>13:20:00.5Z</code> and <code>2006-10-17T13:20:00.123456+02:00</code>.
+ *
+ * Unlike <code>SimpleDateFormat</code> this shares no state between calls,
+ * so it's safe to use from any number of request threads at once.  Each
+ * parse reads the characters in place with no intermediate strings.
+ * Fractional seconds may have any number of digits; timestamps keep up to
+ * nanosecond precision and dates and times keep milliseconds.  A value
+ * without a timezone is taken to be in the server's default zone.  Dates
+ * before the Gregorian cutover in October 1582 are Julian calendar dates,
+ * as they are for java.sql.Date and the old SimpleDateFormat parsing.
+ */
+class DateTimeParser {
+
+  private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+  private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+  // Years before this may fall before the switch from the Julian calendar
+  private static final int GREGORIAN_CUTOVER_YEAR = 1582;
+
+  private String text;
+  private String kind;
+  private int pos = 0;
+  private int nanos = 0;
+
+  private DateTimeParser(String text, String kind) {
+    this.text = text.trim();
+    this.kind = kind;
+  }
+
+  public static java.sql.Date parseDate(String text) throws ParseException {
+    DateTimeParser parser = new DateTimeParser(text, "xs:date");
+    long local = parser.readDate() * MILLIS_PER_DAY;
+    return new java.sql.Date(parser.readZone(local));
+  }
+
+  public static Time parseTime(String text) throws ParseException {
+    DateTimeParser parser = new DateTimeParser(text, "xs:time");
+    long local = parser.readTime();
+    return new Time(parser.readZone(local));
+  }
+
+  public static Timestamp parseTimestamp(String text) throws ParseException {
+    DateTimeParser parser = new DateTimeParser(text, "xs:dateTime");
+    long local = parser.readDate() * MILLIS_PER_DAY;
+    parser.expect('T');
+    local += parser.readTime();
+    Timestamp ts = new Timestamp(parser.readZone(local));
+    ts.setNanos(parser.nanos);
+    return ts;
+  }
+
+  /**
+   * Reads [-]yyyy-mm-dd and returns the day number counted from 1970-01-01.
+   */
+  private long readDate() throws ParseException {
+    boolean negative = pos < text.length() && text.charAt(pos) == '-';
+    if (negative) pos++;
+    int start = pos;
+    long year = readDigits(4, 9);
+    if (pos - start > 4 && text.charAt(start) == '0') {
+      throw error("year has a leading zero");
+    }
+    if (negative) year = -year;
+    expect('-');
+    int month = (int) readDigits(2, 2);
+    expect('-');
+    int day = (int) readDigits(2, 2);
+    if (month < 1 || month > 12) {
+      throw error("month out of range");
+    }
+    if (day < 1 || day > daysInMonth(year, month)) {
+      throw error("day out of range");
+    }
+    if (year <= GREGORIAN_CUTOVER_YEAR) {
+      return daysFromCalendar(year, month, day);
+    }
+    return daysFromCivil(year, month, day);
+  }
+
+  /**
+   * Reads hh:mm:ss[.fff...] and returns the milliseconds since midnight.
+   * The full fraction, to nanoseconds, is kept in <code>nanos</code>.
+   */
+  private long readTime() throws ParseException {
+    int hour = (int) readDigits(2, 2);
+    expect(':');
+    int minute = (int) readDigits(2, 2);
+    expect(':');
+    int second = (int) readDigits(2, 2);
+    if (pos < text.length() && text.charAt(pos) == '.') {
+      pos++;
+      int start = pos;
+      int scale = 100000000;
+      while (pos < text.length() && isDigit(text.charAt(pos))) {
+        // Digits past nanoseconds are dropped
+        nanos += (text.charAt(pos) - '0') * scale;
+        scale /= 10;
+        pos++;
+      }
+      if (pos == start) {
+        throw error("missing fractional seconds");
+      }
+    }
+    if (hour == 24 && (minute != 0 || second != 0 || nanos != 0)) {
+      throw error("24:00:00 is the only time allowed in hour 24");
+    }
+    if (hour > 24 || minute > 59 || second > 59) {
+      throw error("time out of range");
+    }
+    return ((hour * 60L + minute) * 60 + second) * 1000 + nanos / 1000000;
+  }
+
+  /**
+   * Reads the optional timezone, which must end the text, and converts
+   * the local time to UTC.
+   */
+  private long readZone(long local) throws ParseException {
+    if (pos == text.length()) {
+      TimeZone zone = TimeZone.getDefault();
+      int offset = zone.getOffset(local - zone.getRawOffset());
+      // A second look settles which side of a daylight saving change we're on
+      return local - zone.getOffset(local - offset);
+    }
+    char c = text.charAt(pos++);
+    long utc;
+    if (c == 'Z') {
+      utc = local;
+    }
+    else if (c == '+' || c == '-') {
+      int hours = (int) readDigits(2, 2);
+      expect(':');
+      int minutes = (int) readDigits(2, 2);
+      if (minutes > 59 || hours * 60 + minutes > 14 * 60) {
+        throw error("timezone out of range");
+      }
+      long offset = (hours * 60L + minutes) * 60 * 1000;
+      utc = c == '+' ? local - offset : local + offset;
+    }
+    else {
+      pos--;
+      throw error("unexpected '" + c + "'");
+    }
+    if (pos != text.length()) {
+      throw error("unexpected text after the timezone");
+    }
+    return utc;
+  }
+
+  private long readDigits(int min, int max) throws ParseException {
+    int start = pos;
+    long value = 0;
+    while (pos < text.length() && pos - start < max && isDigit(text.charAt(pos))) {
+      value = value * 10 + (text.charAt(pos) - '0');
+      pos++;
+    }
+    if (pos - start < min) {
+      throw error("expected " + min + " digits");
+    }
+    return value;
+  }
+
+  private void expect(char c) throws ParseException {
+    if (pos >= text.length() || text.charAt(pos) != c) {
+      throw error("expected '" + c + "'");
+    }
+    pos++;
+  }
+
+  private ParseException error(String problem) {
+    return new ParseException("Invalid " + kind + " value '" + text + "', " + problem + " at position " + pos, pos);
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static int daysInMonth(long year, int month) {
+    switch (month) {
+      case 2:
+        // Every fourth year before the cutover, as the Julian calendar has it
+        boolean leap = year % 4 == 0 && (year < GREGORIAN_CUTOVER_YEAR || year % 100 != 0 || year % 400 == 0);
+        return leap ? 29 : 28;
+      case 4: case 6: case 9: case 11:
+        return 30;
+      default:
+        return 31;
+    }
+  }
+
+  /**
+   * Days from 1970-01-01 to the given date, through the same hybrid
+   * Julian/Gregorian calendar java.sql.Date and the drivers use.  Only
+   * needed for old dates, where the two calendars disagree.
+   */
+  private static long daysFromCalendar(long year, int month, int day) {
+    GregorianCalendar calendar = new GregorianCalendar(UTC);
+    calendar.clear();
+    calendar.set((int) year, month - 1, day);
+    // Midnight UTC, so this divides exactly
+    return calendar.getTimeInMillis() / MILLIS_PER_DAY;
+  }
+
+  /**
+   * Days from 1970-01-01 to the given Gregorian date, counting in 400 year
+   * eras so no calendar object is needed.  Right for any date after the
+   * Gregorian cutover.
+   */
+  private static long daysFromCivil(long year, int month, int day) {
+    if (month <= 2) year--;
+    long era = (year >= 0 ? year : year - 399) / 400;
+    long yearOfEra = year - era * 400;
+    long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+}
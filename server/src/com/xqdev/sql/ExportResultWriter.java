@@ -0,0 +1,265 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Writes the rows of an "export" request as a stream of separate XML
+ * documents, ready to load into MarkLogic one by one, instead of as one
+ * <code>sql:result</code>.  The response is <code>multipart/mixed</code>,
+ * one part per document:
+ * <pre>
+ *   --mlsql-4f1c...
+ *   Content-Type: text/xml; charset=UTF-8
+ *   Content-Disposition: attachment; filename="/customers/1042.xml"
+ *   Content-Length: 312
+ *
+ *   &lt;sql:result ...&gt;&lt;sql:meta/&gt;&lt;sql:tuple&gt;...&lt;/sql:tuple&gt;&lt;/sql:result&gt;
+ * </pre>
+ * Each document is a <code>sql:result</code> holding the next
+ * <code>rows-per-document</code> rows (default 1).  Its URI, given as the
+ * part's filename, comes from the <code>uri-template</code> option, where
+ * <code>{name}</code> is replaced with the value of column "name" in the
+ * document's first row (percent-encoded where it isn't a letter, digit or
+ * one of <code>-._~</code>) and <code>{#}</code> with the document's number
+ * from 1.  The default, "/{#}.xml", just numbers them; a template built from
+ * the table's key gives URIs that stay the same from one export to the
+ * next.  Key columns are read with <code>getString</code> before the row is
+ * written, so they should be ordinary columns rather than LOBs.
+ *
+ * The last part, with a Content-Disposition of "inline", is a
+ * <code>sql:result</code> whose meta holds the number of documents sent and
+ * any exceptions or warnings, so a reader can tell a finished export from
+ * one that failed part way.
+ *
+ * Only one document is held in memory at a time, and each is sent as soon
+ * as it's complete, so the reader can load documents while later rows are
+ * still being fetched.
+ */
+class ExportResultWriter extends XmlResultWriter {
+
+  public static final String URI_TEMPLATE = "uri-template";
+  public static final String ROWS_PER_DOCUMENT = "rows-per-document";
+
+  private static final byte[] CRLF = { '\r', '\n' };
+
+  private CaptureStream response;
+  private ByteArrayOutputStream status;
+  private ByteArrayOutputStream document = new ByteArrayOutputStream(8192);
+  private String boundary = "mlsql-" + UUID.randomUUID().toString().replace("-", "");
+  private String template;
+  private int rowsPerDocument;
+  private long documents = 0;
+
+  /**
+   * @param template the <code>uri-template</code> option, empty for the default
+   * @param rowsPerDocument the <code>rows-per-document</code> option
+   */
+  public ExportResultWriter(OutputStream out, String template, int rowsPerDocument) throws XMLStreamException {
+    // Meta and exceptions go to the status document, written last
+    this(out, new ByteArrayOutputStream(), template, rowsPerDocument);
+  }
+
+  private ExportResultWriter(OutputStream out, ByteArrayOutputStream status, String template, int rowsPerDocument)
+          throws XMLStreamException {
+    super(status);
+    this.status = status;
+    this.response = new CaptureStream(out);
+    this.template = template.trim().length() > 0 ? template.trim() : "/{#}.xml";
+    this.rowsPerDocument = Math.max(1, rowsPerDocument);
+  }
+
+  public String getContentType() {
+    return "multipart/mixed; boundary=" + boundary;
+  }
+
+  public long getBytesWritten() {
+    return response.count;
+  }
+
+  /**
+   * Sends the status document as the last part and closes the multipart
+   * body.
+   */
+  public void endDocument() throws XMLStreamException {
+    addMeta("documents", documents);
+    super.endDocument();
+    try {
+      writePart(null, status);
+      write("--" + boundary + "--\r\n");
+      response.flush();
+    }
+    catch (IOException e) {
+      throw new XMLStreamException(e);
+    }
+  }
+
+  /**
+   * Sends the rows as documents of <code>rows-per-document</code> rows
+   * each.  A document that fails part way isn't sent.  Exports always
+   * read to the end, so <code>limit</code> is ignored.
+   */
+  public boolean addRows(ResultSet rs, Column[] columns, boolean typed, int limit, boolean onRow)
+          throws SQLException, IOException, XMLStreamException {
+    List<Object> parts = parseTemplate(template, columns);
+
+    long start = System.nanoTime();
+    boolean more = onRow || rs.next();
+    timings.add(Metrics.Phase.FETCH, System.nanoTime() - start);
+    while (more) {
+      String uri = expand(parts, rs, documents + 1);
+      document.reset();
+      XmlResultWriter writer = new XmlResultWriter(document);
+      try {
+        writer.startDocument();
+        more = writer.addRows(rs, columns, typed, rowsPerDocument, true);
+        writer.endDocument();
+      }
+      finally {
+        for (Metrics.Phase phase : Metrics.Phase.values()) {
+          timings.add(phase, writer.timings.nanos[phase.ordinal()]);
+        }
+        timings.rows += writer.timings.rows;
+      }
+      start = System.nanoTime();
+      writePart(uri, document);
+      documents++;
+      timings.add(Metrics.Phase.SERIALIZE, System.nanoTime() - start);
+    }
+    return false;
+  }
+
+  /**
+   * Splits a URI template into its literal text (Strings) and the columns
+   * (Columns) and document numbers (null) to put in between.
+   */
+  static List<Object> parseTemplate(String template, Column[] columns) {
+    List<Object> parts = new ArrayList<Object>();
+    int at = 0;
+    while (at < template.length()) {
+      int open = template.indexOf('{', at);
+      if (open < 0) {
+        parts.add(template.substring(at));
+        break;
+      }
+      int close = template.indexOf('}', open);
+      if (close < 0) {
+        throw new IllegalArgumentException("The uri-template '" + template + "' has a '{' with no '}'");
+      }
+      if (open > at) parts.add(template.substring(at, open));
+      String name = template.substring(open + 1, close).trim();
+      if (name.equals("#")) {
+        parts.add(null);
+      }
+      else {
+        Column column = null;
+        for (Column c : columns) {
+          if (c.label != null && c.label.equalsIgnoreCase(name)) column = c;
+        }
+        if (column == null) {
+          throw new IllegalArgumentException("The uri-template names column '" + name +
+                  "', which the select doesn't return");
+        }
+        parts.add(column);
+      }
+      at = close + 1;
+    }
+    return parts;
+  }
+
+  private static String expand(List<Object> parts, ResultSet rs, long number) throws SQLException {
+    StringBuffer uri = new StringBuffer(64);
+    for (Object part : parts) {
+      if (part == null) {
+        uri.append(number);
+      }
+      else if (part instanceof String) {
+        uri.append((String) part);
+      }
+      else {
+        Column column = (Column) part;
+        String value = rs.getString(column.index);
+        if (value == null) {
+          throw new SQLException("Document " + number + " has a null " + column.label +
+                  ", which the uri-template needs", "22004");
+        }
+        encode(value, uri);
+      }
+    }
+    return uri.toString();
+  }
+
+  /**
+   * Percent-encodes everything but the unreserved URI characters, so a
+   * value can't add path segments or break the part's headers.
+   */
+  private static void encode(String value, StringBuffer uri) {
+    byte[] bytes;
+    try {
+      bytes = value.getBytes("UTF-8");
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);  // UTF-8 is always supported
+    }
+    for (byte b : bytes) {
+      int c = b & 0xff;
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+              c == '-' || c == '.' || c == '_' || c == '~') {
+        uri.append((char) c);
+      }
+      else {
+        uri.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+      }
+    }
+  }
+
+  private void writePart(String uri, ByteArrayOutputStream body) throws IOException {
+    StringBuffer head = new StringBuffer(160);
+    head.append("--").append(boundary).append("\r\n");
+    head.append("Content-Type: text/xml; charset=UTF-8\r\n");
+    if (uri != null) {
+      head.append("Content-Disposition: attachment; filename=\"");
+      for (int i = 0; i < uri.length(); i++) {
+        char c = uri.charAt(i);
+        if (c == '"' || c == '\\') head.append('\\');
+        head.append(c);
+      }
+      head.append("\"\r\n");
+    }
+    else {
+      head.append("Content-Disposition: inline\r\n");
+    }
+    head.append("Content-Length: ").append(body.size()).append("\r\n\r\n");
+    write(head.toString());
+    body.writeTo(response);
+    response.write(CRLF);
+  }
+
+  private void write(String s) throws IOException {
+    response.write(s.getBytes("UTF-8"));
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Chooses how many rows the driver brings back per round trip when a
+ * select is read.  Left to themselves drivers are at one extreme or the
+ * other: Oracle fetches 10 rows at a time, so a large select is mostly
+ * network round trips, while MySQL reads the entire result into memory
+ * before handing back the first row.
+ *
+ * The <code>fetch-size</code> option, per request or as a setting, is a
+ * number of rows, 0 for the driver's default, or "adaptive".  An adaptive
+ * fetch size is the number of rows that fit in
+ * <code>fetch-memory-budget</code> bytes.  The row width comes from what
+ * earlier runs of the same SQL actually wrote, or the first time from
+ * the result set's metadata.
+ *
+ * Settings, per datasource or from the servlet init-params:
+ * <ul>
+ * <li><code>fetch-size</code> - used when a request doesn't give one (default 0)
+ * <li><code>fetch-memory-budget</code> - bytes of rows an adaptive fetch may bring back at once (default 4194304)
+ * <li><code>fetch-size-max</code> - the largest adaptive fetch size (default 5000)
+ * <li><code>fetch-streaming</code> - the driver only streams when given Integer.MIN_VALUE, as MySQL's
+ *     Connector/J does, so any fetch size other than 0 becomes that (default false)
+ * </ul>
+ * A streamed MySQL result is read a row at a time and nothing else can
+ * run on its connection until it's closed, which suits us since every
+ * select is read to the end (or closed) before the next statement runs.
+ * With <code>useCursorFetch=true</code> on the url MySQL honors ordinary
+ * fetch sizes instead, so leave <code>fetch-streaming</code> off then.
+ */
+class FetchSizer {
+
+  public static final String FETCH_SIZE = "fetch-size";
+  public static final String MEMORY_BUDGET = "fetch-memory-budget";
+  public static final String MAX = "fetch-size-max";
+  public static final String STREAMING = "fetch-streaming";
+  public static final String ADAPTIVE = "adaptive";
+
+  private static final int MIN = 10;
+  private static final int GUESSED_ROW_BYTES = 512;  // until the metadata says otherwise
+  private static final int LEARN_MIN_ROWS = 100;     // fewer say more about the writer's buffering than the rows
+  private static final int REMEMBERED = 1000;        // statements whose row width is kept
+
+  private String defaultSize;
+  private long budget;
+  private int max;
+  private boolean streaming;
+  private Map<String, Integer> rowBytes;
+
+  public FetchSizer(Properties settings) {
+    defaultSize = settings.getProperty(FETCH_SIZE, "0").trim();
+    budget = Math.max(1, ConnectionPool.getInt(settings, MEMORY_BUDGET, 4 * 1024 * 1024));
+    max = Math.max(MIN, ConnectionPool.getInt(settings, MAX, 5000));
+    streaming = "true".equalsIgnoreCase(settings.getProperty(STREAMING, "false").trim());
+    rowBytes = Collections.synchronizedMap(new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+        return size() > REMEMBERED;
+      }
+    });
+  }
+
+  /**
+   * Returns the fetch size to set before a select is executed.
+   *
+   * @param option the request's fetch-size option, empty if it gave none
+   * @param maxRows the request's max-rows, or -1
+   */
+  public int forSelect(String query, String option, int maxRows) {
+    String size = option.length() > 0 ? option.trim() : defaultSize;
+    int rows;
+    if (size.equalsIgnoreCase(ADAPTIVE)) {
+      Integer known = rowBytes.get(query);
+      rows = fit(known != null ? known : GUESSED_ROW_BYTES, maxRows);
+    }
+    else {
+      rows = parse(size);
+    }
+    return rows != 0 && streaming ? Integer.MIN_VALUE : rows;
+  }
+
+  /**
+   * Returns the fetch size for a cursor, which should bring back a page
+   * per round trip.
+   */
+  public int forCursor(int pageSize) {
+    return streaming ? Integer.MIN_VALUE : pageSize;
+  }
+
+  /**
+   * Called once an adaptive select has executed.  The first time a query
+   * is seen its row width is estimated from the metadata and the fetch
+   * size for the rest of the rows adjusted to suit.  Drivers that only
+   * take the hint from the statement ignore this, and the estimate is
+   * used from the next run on.
+   */
+  public void executed(String query, String option, ResultSet rs, int maxRows) throws SQLException {
+    String size = option.length() > 0 ? option.trim() : defaultSize;
+    if (streaming || !size.equalsIgnoreCase(ADAPTIVE) || rowBytes.containsKey(query)) {
+      return;
+    }
+    int estimate = estimateRowBytes(rs.getMetaData());
+    rowBytes.put(query, estimate);
+    rs.setFetchSize(fit(estimate, maxRows));
+  }
+
+  /**
+   * Remembers how wide a query's rows turned out to be, from what writing
+   * them took.  Results too small to say much are ignored.
+   */
+  public void read(String query, long bytes, long rows) {
+    if (streaming || rows < LEARN_MIN_ROWS || bytes <= 0) {
+      return;
+    }
+    int observed = (int) Math.min(Integer.MAX_VALUE, bytes / rows);
+    Integer known = rowBytes.get(query);
+    // Weighted toward the past, so one unusual run doesn't swing it far
+    rowBytes.put(query, known == null ? observed : (int) ((3L * known + observed) / 4));
+  }
+
+  private int fit(int bytesPerRow, int maxRows) {
+    long rows = budget / Math.max(1, bytesPerRow);
+    rows = Math.max(MIN, Math.min(max, rows));
+    if (maxRows > 0) rows = Math.min(rows, maxRows);
+    return (int) rows;
+  }
+
+  private static int parse(String size) {
+    try {
+      return Math.max(0, Integer.parseInt(size));
+    }
+    catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * A rough in-memory size for one row: strings at their declared width,
+   * as Java chars, and everything else at the size of a boxed value.
+   * LOBs come back as locators, not their contents.
+   */
+  static int estimateRowBytes(ResultSetMetaData rsmd) throws SQLException {
+    int bytes = 32;
+    int count = rsmd.getColumnCount();
+    for (int i = 1; i <= count; i++) {
+      switch (rsmd.getColumnType(i)) {
+        case Types.CHAR:
+        case Types.VARCHAR:
+        case Types.NCHAR:
+        case Types.NVARCHAR:
+        case Types.BINARY:
+        case Types.VARBINARY: {
+          int width = rsmd.getColumnDisplaySize(i);
+          bytes += 40 + 2 * (width > 0 ? Math.min(width, 4000) : 255);
+          break;
+        }
+        case Types.LONGVARCHAR:
+        case Types.LONGNVARCHAR:
+        case Types.LONGVARBINARY:
+          bytes += 4000;
+          break;
+        case Types.DECIMAL:
+        case Types.NUMERIC:
+          bytes += 40 + Math.max(0, Math.min(rsmd.getPrecision(i), 100));
+          break;
+        case Types.BLOB:
+        case Types.CLOB:
+        case Types.NCLOB:
+          bytes += 128;
+          break;
+        default:
+          bytes += 24;
+      }
+    }
+    return bytes;
+  }
+}
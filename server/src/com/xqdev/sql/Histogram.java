@@ -0,0 +1,94 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency distribution that any number of threads can record into
+ * without locking.  Durations are counted in power-of-two microsecond
+ * buckets (under 1us, 1-2us, 2-4us, ... up to about 35 minutes), so a
+ * recording is a couple of atomic adds and percentiles come out to
+ * within a factor of two, which is plenty for spotting where time goes.
+ */
+class Histogram {
+
+  private static final int BUCKETS = 32;
+
+  private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private AtomicLong count = new AtomicLong();
+  private AtomicLong totalMicros = new AtomicLong();
+  private AtomicLong maxMicros = new AtomicLong();
+
+  public void record(long nanos) {
+    long micros = nanos / 1000;
+    if (micros < 0) micros = 0;  // nanoTime isn't monotonic on every platform
+    int bucket = micros == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    counts.incrementAndGet(bucket);
+    count.incrementAndGet();
+    totalMicros.addAndGet(micros);
+    long max;
+    while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) { }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getTotalMicros() {
+    return totalMicros.get();
+  }
+
+  public long getMaxMicros() {
+    return maxMicros.get();
+  }
+
+  public long getMeanMicros() {
+    long n = count.get();
+    return n == 0 ? 0 : totalMicros.get() / n;
+  }
+
+  /**
+   * Returns the upper bound of the bucket holding the given percentile
+   * (0 to 100), in microseconds.  Recordings made while this runs may or
+   * may not be included.
+   */
+  public long getPercentileMicros(double percentile) {
+    long[] snapshot = new long[BUCKETS];
+    long n = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      n += snapshot[i];
+    }
+    if (n == 0) return 0;
+    long rank = (long) Math.ceil(n * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(i == 0 ? 1 : 1L << i, Math.max(1, maxMicros.get()));
+      }
+    }
+    return maxMicros.get();
+  }
+}
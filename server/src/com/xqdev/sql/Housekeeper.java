@@ -0,0 +1,88 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.util.concurrent.*;
+
+/**
+ * Runs periodic background chores (pool eviction and the like), and
+ * one-off ones like cancelling an overdue statement, on a daemon thread
+ * owned by the servlet, so they never hold up a request.
+ *
+ * Chores run one at a time, so one that blocks delays the rest.  The
+ * servlet's shared housekeeper is for quick ones.  Statement deadlines
+ * and each pool's checks, which wait on a database, get their own.
+ */
+class Housekeeper {
+
+  private ScheduledThreadPoolExecutor executor;
+
+  public Housekeeper(final String name) {
+    executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    // One-off tasks are mostly cancelled long before they're due
+    executor.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Runs the task now and then repeatedly with the given delay between
+   * runs.  An exception from one run is logged and doesn't cancel the
+   * later ones.
+   */
+  public ScheduledFuture<?> schedule(final Runnable task, long periodMillis) {
+    return executor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          task.run();
+        }
+        catch (Throwable t) {
+          Log.log("Background task failed", t);
+        }
+      }
+    }, 0, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Runs the task once, after the given delay.
+   */
+  public ScheduledFuture<?> scheduleOnce(final Runnable task, long delayMillis) {
+    return executor.schedule(new Runnable() {
+      public void run() {
+        try {
+          task.run();
+        }
+        catch (Throwable t) {
+          Log.log("Background task failed", t);
+        }
+      }
+    }, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+}
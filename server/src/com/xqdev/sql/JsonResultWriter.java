@@ -0,0 +1,387 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.io.*;
+import java.util.*;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Writes a result as a JSON object, with the column names given once and
+ * each row as an array of values:
+ * <pre>
+ *   {"columns":["id","name","amount"],
+ *    "rows":[[1,"first",12.50],[2,null,7.25]],
+ *    "meta":{"warnings":[...]}}
+ * </pre>
+ * Typed results add <code>"types":["xs:long","xs:string","xs:decimal"]</code>
+ * and write dates and times in XML Schema form.  Numbers and booleans
+ * are JSON numbers and booleans either way, except NaN and the
+ * infinities, which JSON can't express and are written as strings.
+ * Binary values are Base64 strings.
+ *
+ * Out parameters are written as <code>"parameters":[{"index":1,"value":"..."}]</code>
+ * and nested results as <code>"results":[{...},{...}]</code>.  Everything
+ * meta-like is kept until the result ends and written as its last
+ * member, <code>"meta"</code>, holding <code>"transaction"</code>,
+ * <code>"cursor"</code>, and arrays of <code>"rows-affected"</code>,
+ * <code>"generated-keys"</code>, <code>"exceptions"</code> and
+ * <code>"warnings"</code>.  Exceptions and warnings are objects with a
+ * <code>"type"</code>, <code>"reason"</code> and, for SQL ones,
+ * <code>"sql-state"</code> and <code>"vendor-code"</code>.  Holding the
+ * meta back costs little, since it's small next to the rows, which are
+ * streamed.
+ */
+class JsonResultWriter extends TextResultWriter {
+
+  static final String MEDIA_TYPE = "application/json";
+
+  private Level level;
+  private LinkedList<Level> outerLevels = new LinkedList<Level>();
+
+  public JsonResultWriter(OutputStream out) {
+    super(out);
+  }
+
+  public String getFormat() {
+    return JSON;
+  }
+
+  public String getContentType() {
+    return MEDIA_TYPE + "; charset=UTF-8";
+  }
+
+  public void startDocument() throws XMLStreamException {
+    startFragment();
+  }
+
+  public void startFragment() throws XMLStreamException {
+    write("{");
+    level = new Level();
+  }
+
+  public void endDocument() throws XMLStreamException {
+    endLevel();
+    flush();
+  }
+
+  public void startResult() throws XMLStreamException {
+    openArray("results");
+    item();
+    write("{");
+    outerLevels.addFirst(level);
+    level = new Level();
+  }
+
+  public void endResult() throws XMLStreamException {
+    endLevel();
+    level = outerLevels.removeFirst();
+  }
+
+  public void addOutParam(int index, String value) throws XMLStreamException {
+    openArray("parameters");
+    item();
+    write("{\"index\":" + index + ",\"value\":");
+    if (value == null) write("null");
+    else writeString(value);
+    write("}");
+  }
+
+  protected void addMeta(String name, String value) throws XMLStreamException {
+    addMetaValue(name.equals("generated-key") ? "generated-keys" : name, value == null ? "null" : quote(value));
+  }
+
+  protected void addMeta(String name, long value) throws XMLStreamException {
+    addMetaValue(name, Long.toString(value));
+  }
+
+  protected void startProblems(String name) {
+  }
+
+  protected void addProblem(String name, String type, String reason,
+                            boolean sql, String sqlState, int vendorCode) throws XMLStreamException {
+    StringBuffer buf = new StringBuffer(128);
+    buf.append("{\"type\":").append(quote(type));
+    buf.append(",\"reason\":").append(reason == null ? "null" : quote(reason));
+    if (sql) {
+      buf.append(",\"sql-state\":").append(sqlState == null ? "null" : quote(sqlState));
+      buf.append(",\"vendor-code\":").append(vendorCode);
+    }
+    buf.append('}');
+    addMetaValue(name + "s", buf.toString());
+  }
+
+  protected void endProblems() {
+  }
+
+  protected void startRows(Column[] columns, boolean typed) throws XMLStreamException {
+    tidy();
+    member("columns");
+    write("[");
+    for (int i = 0; i < columns.length; i++) {
+      if (i > 0) write(",");
+      String label = columns[i].label;
+      writeString(label != null && label.length() > 0 ? label : columns[i].name);
+    }
+    write("]");
+    if (typed) {
+      member("types");
+      write("[");
+      for (int i = 0; i < columns.length; i++) {
+        if (i > 0) write(",");
+        String type = columns[i].kind.xsdType;
+        write(type == null ? "null" : quote(type));
+      }
+      write("]");
+    }
+    openArray("rows");
+  }
+
+  protected void endRows() throws XMLStreamException {
+    write("]");
+    level.array = null;
+  }
+
+  protected void startRow() throws XMLStreamException {
+    item();
+    write("[");
+    level.inRow = true;
+  }
+
+  protected void endRow() throws XMLStreamException {
+    write("]");
+    level.inRow = false;
+  }
+
+  protected void startColumn(Column column, boolean typed) throws XMLStreamException {
+    if (column.index > 1) write(",");
+    level.valueNeeded = true;
+  }
+
+  protected void endColumn() {
+  }
+
+  protected void writeNull() throws XMLStreamException {
+    write("null");
+    level.valueNeeded = false;
+  }
+
+  protected void writeString(String value) throws XMLStreamException {
+    try {
+      writer.write('"');
+      escape(value, writer);
+      writer.write('"');
+    }
+    catch (IOException e) {
+      throw failed(e);
+    }
+    level.valueNeeded = false;
+  }
+
+  protected void writeLiteral(String value) throws XMLStreamException {
+    write(value);
+    level.valueNeeded = false;
+  }
+
+  protected void startText() throws XMLStreamException {
+    write("\"");
+    level.valueNeeded = false;
+    level.inString = true;
+  }
+
+  protected void writeText(String text) throws XMLStreamException {
+    try {
+      escape(text, writer);
+    }
+    catch (IOException e) {
+      throw failed(e);
+    }
+  }
+
+  protected void writeSafeText(char[] text, int len) throws XMLStreamException {
+    write(text, len);
+  }
+
+  protected void endText() throws XMLStreamException {
+    write("\"");
+    level.inString = false;
+  }
+
+  /**
+   * Rows are written as their "columns" and "rows" members, so the bytes
+   * copied in take the place of a member.  A nested result is one more
+   * item of "results".
+   */
+  protected void startRaw(boolean result) throws XMLStreamException {
+    if (result) {
+      openArray("results");
+      item();
+    }
+    else {
+      tidy();
+      if (level.members++ > 0) write(",");
+      level.memberPending = true;
+    }
+    flush();
+  }
+
+  protected void endRaw(boolean result) {
+    if (!result) level.memberPending = false;
+  }
+
+  private void endLevel() throws XMLStreamException {
+    tidy();
+    member("meta");
+    write("{");
+    boolean first = true;
+    for (Map.Entry<String, List<String>> entry : level.meta.entrySet()) {
+      if (!first) write(",");
+      first = false;
+      write(quote(entry.getKey()) + ":");
+      List<String> values = entry.getValue();
+      if (entry.getKey().equals("transaction") || entry.getKey().equals("cursor")) {
+        write(values.get(values.size() - 1));
+        continue;
+      }
+      write("[");
+      for (int i = 0; i < values.size(); i++) {
+        if (i > 0) write(",");
+        write(values.get(i));
+      }
+      write("]");
+    }
+    write("}}");
+  }
+
+  private void addMetaValue(String name, String json) {
+    List<String> values = level.meta.get(name);
+    if (values == null) {
+      values = new ArrayList<String>();
+      level.meta.put(name, values);
+    }
+    values.add(json);
+  }
+
+  /**
+   * Closes whatever was left open, which is only ever more than the
+   * current array when an exception interrupted a row part way through.
+   */
+  private void tidy() throws XMLStreamException {
+    if (level.inString) {
+      write("\"");
+      level.inString = false;
+    }
+    if (level.valueNeeded) {
+      write("null");
+      level.valueNeeded = false;
+    }
+    if (level.inRow) {
+      write("]");
+      level.inRow = false;
+    }
+    if (level.array != null) {
+      write("]");
+      level.array = null;
+    }
+  }
+
+  private void member(String name) throws XMLStreamException {
+    if (level.memberPending) {
+      level.memberPending = false;
+    }
+    else if (level.members++ > 0) {
+      write(",");
+    }
+    write("\"" + name + "\":");
+  }
+
+  private void openArray(String name) throws XMLStreamException {
+    if (name.equals(level.array)) return;
+    tidy();
+    member(name);
+    write("[");
+    level.array = name;
+    level.items = 0;
+  }
+
+  private void item() throws XMLStreamException {
+    if (level.items++ > 0) write(",");
+  }
+
+  private static String quote(String s) {
+    StringWriter buf = new StringWriter(s.length() + 8);
+    buf.write('"');
+    try {
+      escape(s, buf);
+    }
+    catch (IOException e) {
+      throw new IllegalStateException(e);  // a StringWriter doesn't fail
+    }
+    buf.write('"');
+    return buf.toString();
+  }
+
+  /**
+   * Writes the string's characters as they'd appear between quotes,
+   * copying runs that need no escaping in one go.
+   */
+  private static void escape(String s, Writer w) throws IOException {
+    int start = 0;
+    int len = s.length();
+    for (int i = 0; i < len; i++) {
+      char c = s.charAt(i);
+      if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+        continue;
+      }
+      w.write(s, start, i - start);
+      start = i + 1;
+      switch (c) {
+        case '"': w.write("\\\""); break;
+        case '\\': w.write("\\\\"); break;
+        case '\n': w.write("\\n"); break;
+        case '\r': w.write("\\r"); break;
+        case '\t': w.write("\\t"); break;
+        default: {
+          // Other control characters, and the line separators JavaScript won't take in a string
+          String hex = Integer.toHexString(c);
+          w.write("\\u0000", 0, 6 - hex.length());
+          w.write(hex);
+        }
+      }
+    }
+    w.write(s, start, len - start);
+  }
+
+  /**
+   * What's open within one result.
+   */
+  private static class Level {
+    int members = 0;
+    boolean memberPending = false;  // copied in bytes that stand in for the next member
+    String array;                   // the array member being written, if any
+    int items;                      // written to it so far
+    boolean inRow = false;
+    boolean valueNeeded = false;    // a column started with no value yet
+    boolean inString = false;       // a value being written in pieces
+    Map<String, List<String>> meta = new LinkedHashMap<String, List<String>>();  // as JSON text
+  }
+}
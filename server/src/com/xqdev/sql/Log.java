@@ -21,36 +21,460 @@
  */
 package com.xqdev.sql;
 
+import java.io.*;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * Utility class used for logging messages, typically errors and warnings.
- * It can output to System.err and/or a log file.  It may also timestamp
- * the message.
+ * It can output to System.err or a log file, rolled once it grows too
+ * large.
+ *
+ * Logging never blocks the caller.  Entries go into a bounded ring
+ * buffer and a background thread formats and writes them, so a database
+ * outage that fails thousands of requests a second doesn't have every
+ * request thread queueing on the System.err lock.  If the buffer fills
+ * anyway, entries are dropped and counted, and the count is logged once
+ * there's room.  The same stack trace (by exception class, SQLState and
+ * where it was thrown) is written at most once per
+ * <code>log-trace-interval</code>, with the number of repeats skipped in
+ * between.  The repeats still get their one-line message.  If the log
+ * file can't be written, logging carries on to System.err.
+ *
+ * Settings, from the servlet init-params:
+ * <ul>
+ * <li><code>log-level</code> - ERROR, WARN, INFO or DEBUG (default INFO)
+ * <li><code>log-file</code> - the file to write, empty for System.err (default empty)
+ * <li><code>log-file-max-bytes</code> - size at which the file is rolled to log-file.1 and so on (default 10485760)
+ * <li><code>log-file-count</code> - files kept, counting the current one (default 5)
+ * <li><code>log-buffer-size</code> - entries waiting to be written before more are dropped (default 8192)
+ * <li><code>log-trace-interval</code> - ms before the same stack trace is written again (default 60000)
+ * </ul>
+ * Logging is shared by everything in the webapp, so with more than one
+ * MLSQL servlet the last one started sets it up.
  */
 public class Log {
 
+  public enum Level { ERROR, WARN, INFO, DEBUG }
+
+  public static final String LEVEL = "log-level";
+  public static final String FILE = "log-file";
+  public static final String FILE_MAX_BYTES = "log-file-max-bytes";
+  public static final String FILE_COUNT = "log-file-count";
+  public static final String BUFFER_SIZE = "log-buffer-size";
+  public static final String TRACE_INTERVAL = "log-trace-interval";
+
+  private static final int MAX_TRACES = 1000;  // signatures remembered
+  private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss.SSS";
+
+  private static volatile Level threshold = Level.INFO;
+  private static volatile long traceInterval = 60000;
+  private static ConcurrentMap<String, TraceWindow> traces = new ConcurrentHashMap<String, TraceWindow>();
+  private static volatile Sink sink = new Sink(8192, null, 0, 0);
+
+  /**
+   * Applies the logging settings, replacing the background writer.
+   * Entries already waiting are written out first.
+   */
+  public static synchronized void configure(Properties settings) {
+    String level = settings.getProperty(LEVEL, "INFO").trim().toUpperCase();
+    if (level.equals("WARNING")) level = "WARN";
+    Level newThreshold;
+    try {
+      newThreshold = Level.valueOf(level);
+    }
+    catch (IllegalArgumentException e) {
+      newThreshold = Level.INFO;
+    }
+    traceInterval = Math.max(0, ConnectionPool.getInt(settings, TRACE_INTERVAL, 60000));
+    String file = settings.getProperty(FILE, "").trim();
+    Sink old = sink;
+    sink = new Sink(Math.max(16, ConnectionPool.getInt(settings, BUFFER_SIZE, 8192)),
+            file.length() > 0 ? new File(file) : null,
+            ConnectionPool.getInt(settings, FILE_MAX_BYTES, 10 * 1024 * 1024),
+            Math.max(1, ConnectionPool.getInt(settings, FILE_COUNT, 5)));
+    if (old != null) old.stop();
+    threshold = newThreshold;
+    if (!level.equals(newThreshold.name())) {
+      log(Level.WARN, "Unknown " + LEVEL + " '" + level + "', using INFO", null);
+    }
+  }
+
+  /**
+   * Writes out whatever is waiting and stops the background writer.
+   * Anything logged afterwards is written straight to System.err.
+   */
+  public static synchronized void shutdown() {
+    Sink old = sink;
+    sink = null;
+    if (old != null) old.stop();
+  }
+
+  public static boolean isEnabled(Level level) {
+    return level.compareTo(threshold) <= 0;
+  }
+
+  /**
+   * Logs a message at INFO, or at ERROR or WARN if it starts "Error:" or
+   * "Warning:".
+   */
   public static void log(String msg) {
-    System.err.println(getPrefix() + msg);
+    log(levelOf(msg, Level.INFO), msg, null);
   }
 
   public static void log(Throwable e) {
-    System.err.println(getPrefix());
-    e.printStackTrace(System.err);
+    log(Level.ERROR, null, e);
   }
 
+  /**
+   * Logs a message with a stack trace, at ERROR unless the message starts
+   * "Warning:".
+   */
   public static void log(String msg, Throwable e) {
-    System.err.println(getPrefix() + msg);
-    e.printStackTrace(System.err);
+    log(levelOf(msg, Level.ERROR), msg, e);
+  }
+
+  /**
+   * Logs a message, and a stack trace if there's an exception, with
+   * fields given as name, value pairs such as "datasource", "oracle".
+   * Fields with a null value are left out.
+   */
+  public static void log(Level level, String msg, Throwable e, Object... fields) {
+    if (!isEnabled(level)) {
+      return;
+    }
+    Entry entry = new Entry(level, msg, fields);
+    if (e != null) {
+      int skipped = admit(e);
+      if (skipped < 0) {
+        // Written too recently, keep just the line
+        if (entry.msg == null) entry.msg = e.toString();
+        entry.traceRepeated = true;
+      }
+      else {
+        entry.thrown = e;
+        entry.skipped = skipped;
+      }
+    }
+    Sink s = sink;
+    if (s != null) {
+      s.offer(entry);  // counted if dropped
+      return;
+    }
+    synchronized (System.err) {
+      PrintWriter out = new PrintWriter(System.err);
+      entry.write(out, new SimpleDateFormat(DATE_FORMAT));
+      out.flush();
+    }
   }
 
   protected static String getPrefix() {
     return "MarkLogic SQL Connector: ";
-    /*
-    // This is useful for writing to a file
+  }
+
+  private static Level levelOf(String msg, Level otherwise) {
+    if (msg == null) return otherwise;
+    if (msg.startsWith("Error:")) return Level.ERROR;
+    if (msg.startsWith("Warning:")) return Level.WARN;
+    return otherwise;
+  }
+
+  /**
+   * Returns how many times the exception's stack trace was skipped since
+   * it was last written, or -1 if it has been written too recently.
+   */
+  private static int admit(Throwable e) {
+    String key = signature(e);
+    long now = System.currentTimeMillis();
+    TraceWindow window = traces.get(key);
+    if (window == null) {
+      if (traces.size() >= MAX_TRACES) traces.clear();
+      TraceWindow had = traces.putIfAbsent(key, new TraceWindow(now));
+      if (had == null) return 0;
+      window = had;
+    }
+    long last = window.written.get();
+    if (now - last >= traceInterval && window.written.compareAndSet(last, now)) {
+      return window.skipped.getAndSet(0);
+    }
+    window.skipped.incrementAndGet();
+    return -1;
+  }
+
+  /**
+   * The class, SQLState and top few frames of each exception in the
+   * chain.  Messages are left out since they often hold ids or values
+   * that differ every time.
+   */
+  private static String signature(Throwable e) {
     StringBuffer buf = new StringBuffer();
-    buf.append("[");
-    buf.append(new Date().toString());
-    buf.append("] ");
+    for (int depth = 0; e != null && depth < 5; e = e.getCause(), depth++) {
+      buf.append(e.getClass().getName());
+      if (e instanceof SQLException) buf.append('/').append(((SQLException) e).getSQLState());
+      StackTraceElement[] frames = e.getStackTrace();
+      for (int i = 0; i < frames.length && i < 3; i++) {
+        buf.append(' ').append(frames[i]);
+      }
+      buf.append(';');
+    }
     return buf.toString();
-    */
+  }
+
+  private static class TraceWindow {
+    AtomicLong written;
+    AtomicInteger skipped = new AtomicInteger();
+
+    TraceWindow(long now) {
+      written = new AtomicLong(now);
+    }
+  }
+
+  /**
+   * One message, captured by the caller and formatted by the writer.
+   */
+  private static class Entry {
+    long time = System.currentTimeMillis();
+    Level level;
+    String msg;
+    Object[] fields;
+    Throwable thrown;
+    int skipped;
+    boolean traceRepeated;
+
+    Entry(Level level, String msg, Object[] fields) {
+      this.level = level;
+      this.msg = msg;
+      this.fields = fields;
+    }
+
+    void write(PrintWriter out, SimpleDateFormat dates) {
+      out.print(dates.format(new Date(time)));
+      out.print(' ');
+      out.print(level);
+      out.print(' ');
+      out.print(getPrefix());
+      out.print(msg != null ? msg : thrown != null ? thrown.toString() : "");
+      for (int i = 0; i + 1 < fields.length; i += 2) {
+        if (fields[i + 1] != null) writeField(out, String.valueOf(fields[i]), String.valueOf(fields[i + 1]));
+      }
+      if (skipped > 0) writeField(out, "repeats-skipped", Integer.toString(skipped));
+      if (traceRepeated) writeField(out, "stack-trace", "repeated");
+      out.println();
+      if (thrown != null) thrown.printStackTrace(out);
+    }
+
+    private static void writeField(PrintWriter out, String name, String value) {
+      out.print(' ');
+      out.print(name);
+      out.print('=');
+      boolean quote = value.length() == 0;
+      for (int i = 0; i < value.length() && !quote; i++) {
+        char c = value.charAt(i);
+        quote = c <= ' ' || c == '"' || c == '=';
+      }
+      if (!quote) {
+        out.print(value);
+        return;
+      }
+      out.print('"');
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        if (c == '"' || c == '\\') out.print('\\');
+        out.print(c == '\n' || c == '\r' ? ' ' : c);
+      }
+      out.print('"');
+    }
+  }
+
+  /**
+   * The ring buffer and the thread that empties it.  Any number of
+   * threads claim a slot by advancing <code>tail</code>, then fill it.
+   * Only the writer thread reads, emptying each slot before moving
+   * <code>head</code> past it, so a slot is never refilled before it's
+   * been written out.  A claimed slot that hasn't been filled yet reads
+   * as empty, and the writer comes back for it.
+   */
+  private static class Sink implements Runnable {
+    private AtomicReferenceArray<Entry> slots;
+    private int mask;
+    private AtomicLong tail = new AtomicLong();
+    private volatile long head = 0;
+    private AtomicLong dropped = new AtomicLong();
+    private volatile boolean stopping = false;
+    private Thread thread;
+
+    private File file;
+    private long maxBytes;
+    private int count;
+    private CountingStream bytes;
+    private PrintWriter out;
+    private SimpleDateFormat dates = new SimpleDateFormat(DATE_FORMAT);
+
+    Sink(int size, File file, long maxBytes, int count) {
+      int capacity = Integer.highestOneBit(size - 1) << 1;  // the next power of two
+      slots = new AtomicReferenceArray<Entry>(capacity);
+      mask = capacity - 1;
+      this.file = file;
+      this.maxBytes = maxBytes;
+      this.count = count;
+      thread = new Thread(this, "MLSQL log writer");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    void offer(Entry entry) {
+      while (true) {
+        long t = tail.get();
+        if (t - head >= slots.length()) {
+          dropped.incrementAndGet();
+          return;
+        }
+        if (tail.compareAndSet(t, t + 1)) {
+          slots.set((int) t & mask, entry);
+          return;
+        }
+      }
+    }
+
+    void stop() {
+      stopping = true;
+      LockSupport.unpark(thread);
+      try {
+        thread.join(5000);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    /**
+     * Writes until stopped.  Nothing may end this loop early: the sink
+     * stays installed, so if the thread died every later entry would be
+     * dropped unseen.
+     */
+    public void run() {
+      try {
+        open(true);
+      }
+      catch (IOException e) {
+        fallBack(e.toString(), 0);
+      }
+      try {
+        while (true) {
+          boolean last = stopping;  // read first, so nothing offered before stop() is missed
+          int written = 0;
+          Entry entry;
+          while ((entry = poll()) != null) {
+            try {
+              entry.write(out, dates);
+            }
+            catch (RuntimeException e) {
+              // Most likely a field's toString, don't let it stop the writer
+              out.println(getPrefix() + "Could not write a log entry: " + e);
+            }
+            written++;
+            if (file != null && maxBytes > 0 && bytes.count >= maxBytes) {
+              try {
+                roll();
+              }
+              catch (IOException e) {
+                fallBack(e.toString(), 0);
+              }
+            }
+          }
+          long lost = dropped.getAndSet(0);
+          if (lost > 0) {
+            new Entry(Level.WARN, lost + " log entries were dropped, the log buffer was full",
+                    new Object[] { BUFFER_SIZE, Integer.toString(slots.length()) }).write(out, dates);
+          }
+          if (written > 0 || lost > 0) {
+            out.flush();
+            // PrintWriter swallows write errors, such as a full disk
+            if (file != null && out.checkError()) fallBack("write failed", written);
+          }
+          if (last && head == tail.get()) break;
+          LockSupport.parkNanos(20 * 1000000L);
+        }
+      }
+      finally {
+        if (out != null) {
+          out.flush();
+          if (file != null) out.close();
+        }
+      }
+    }
+
+    /**
+     * Gives up on the log file and writes to System.err from now on.
+     * <code>lost</code> entries went to the file since it was last known
+     * to be good.
+     */
+    private void fallBack(String problem, int lost) {
+      System.err.println(getPrefix() + "Could not write the log file " + file + " (" + problem +
+              "), logging to System.err instead" + (lost > 0 ? ", " + lost + " log entries may have been lost" : ""));
+      if (out != null) out.close();
+      file = null;
+      out = new PrintWriter(new OutputStreamWriter(System.err), false);
+    }
+
+    private Entry poll() {
+      int i = (int) head & mask;
+      Entry entry = slots.get(i);
+      if (entry != null) {
+        slots.set(i, null);
+        head++;  // only this thread writes head
+      }
+      return entry;
+    }
+
+    private void open(boolean append) throws IOException {
+      if (file == null) {
+        out = new PrintWriter(new OutputStreamWriter(System.err), false);
+        return;
+      }
+      bytes = new CountingStream(new FileOutputStream(file, append), append ? file.length() : 0);
+      out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(bytes, "UTF-8")), false);
+    }
+
+    /**
+     * Moves log-file to log-file.1, log-file.1 to log-file.2 and so on,
+     * deleting the oldest, and starts a new log-file.  With a count of 1
+     * the file is just emptied.
+     */
+    private void roll() throws IOException {
+      out.close();
+      if (count > 1) {
+        String name = file.getPath();
+        new File(name + "." + (count - 1)).delete();
+        for (int i = count - 2; i >= 1; i--) {
+          new File(name + "." + i).renameTo(new File(name + "." + (i + 1)));
+        }
+        file.renameTo(new File(name + ".1"));
+      }
+      open(false);
+    }
+  }
+
+  private static class CountingStream extends FilterOutputStream {
+    long count;
+
+    CountingStream(OutputStream out, long count) {
+      super(out);
+      this.count = count;
+    }
+
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
   }
 }
@@ -22,65 +22,180 @@
 package com.xqdev.sql;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.sql.*;
 import java.util.*;
 import java.text.ParseException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.servlet.http.*;
 import javax.servlet.*;
-import org.jdom.input.SAXBuilder;
-import org.jdom.*;
-import org.jdom.output.XMLOutputter;
-import org.apache.commons.codec.binary.Base64;
+import javax.management.ObjectName;
+import javax.xml.stream.XMLStreamException;
 
 /**
  * Main class for supporting the sql.xqy client.
  *
- * Improvement idea: Let multiple executes happen in the same transaction.
+ * Several executes can share a transaction, either by bracketing them
+ * with "begin" and "commit"/"rollback" requests (see
+ * {@link TransactionManager}) or by sending them together as a "script".
  *
- * Improvement idea: Construct response XML document using strings rather
- * than JDOM for a performance improvement, but at the cost of sanity checking
- * and simplicity.
+ * The response is streamed through a {@link ResultWriter} rather than
+ * built up as a JDOM document, so large selects don't have to fit in memory
+ * and the first rows go out before the last ones are fetched.  Likewise
+ * the request is read by a {@link RequestDecoder} in one pull-parser pass
+ * instead of being built into a tree and queried with XPath.  Either
+ * can be gzip or deflate compressed, see {@link Compression}.  An "export"
+ * request sends the rows of a select as separate documents instead, see
+ * {@link ExportResultWriter}.
+ *
+ * One deployment can serve several databases, each with its own pool;
+ * see {@link DatasourceRegistry}.
  */
 public class MLSQL extends HttpServlet {
 
-  private ConnectionPool pool = null;
+  private DatasourceRegistry datasources = null;
+  private Housekeeper housekeeper = null;
+  private Housekeeper statementTimer = null;
+  private TransactionManager transactions = null;
+  private ThreadPoolExecutor workers = null;
+  private int multiMaxConcurrency;
+  private CursorManager cursors = null;
+  private ResultCache resultCache = null;
+  private Metrics metrics = null;
+  private Compression compression = null;
+  private QueryStats queryStats = null;
+  private ObjectName mbeanName = null;
 
   static String TRY_DATABASE_CONNECTION = "select 1";
 
-  String initProblemDriverUnavailable = null;
-  String initProblemMissingCredential = null;
+  static int DEFAULT_BATCH_SIZE = 500;
+
+  static final String MULTI_THREADS = "multi-threads";
+  static final String MULTI_MAX_CONCURRENCY = "multi-max-concurrency";
 
   public void init(ServletConfig config) throws ServletException {
     super.init(config);
 
-    String driver = null, url, user, password;
-    try {
-      driver = getInitParameter("driver");
-      url = getInitParameter("url");
-      user = getInitParameter("user");
-      password = getInitParameter("password");
-      if (driver == null) {
-        initProblemMissingCredential = "Error: web.xml file is missing the 'driver' init parameter";
-        Log.log(initProblemMissingCredential);
-      }
-      if (url == null) {
-        initProblemMissingCredential = "Error: web.xml file is missing the 'url' init parameter";
-        Log.log(initProblemMissingCredential);
-      }
-      if (user == null) {
+    Properties settings = getInitParameters();
+    Log.configure(settings);
+    if (settings.getProperty("driver") != null) {  // the single datasource set up in web.xml
+      if (settings.getProperty("url") == null) {
+        Log.log("Error: web.xml file is missing the 'url' init parameter");
+      }
+      if (settings.getProperty("user") == null) {
         Log.log("Warning: web.xml file is missing the 'user' init parameter");
       }
-      if (password == null) {
+      if (settings.getProperty("password") == null) {
         Log.log("Warning: web.xml file is missing the 'password' init parameter");
       }
-      if (initProblemMissingCredential == null) {  // good to try
-        pool = new ConnectionPool(driver, url, user, password);
+    }
+
+    housekeeper = new Housekeeper("MLSQL housekeeper");
+    // Kept apart so a slow reaper or sweep can't make a statement overrun
+    statementTimer = new Housekeeper("MLSQL statement timer");
+    datasources = new DatasourceRegistry(settings, loadDatasourcesFile(settings.getProperty("datasources")),
+            statementTimer);
+    transactions = new TransactionManager(
+            ConnectionPool.getInt(settings, TransactionManager.IDLE_TIMEOUT, 60000), housekeeper);
+    cursors = new CursorManager(ConnectionPool.getInt(settings, CursorManager.IDLE_TIMEOUT, 60000), housekeeper);
+    resultCache = new ResultCache(ConnectionPool.getInt(settings, ResultCache.MAX_BYTES, 10 * 1024 * 1024), housekeeper);
+
+    int threads = Math.max(1, ConnectionPool.getInt(settings, MULTI_THREADS, 16));
+    workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(threads * 16), new ThreadFactory() {
+      private AtomicInteger count = new AtomicInteger();
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "MLSQL worker " + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
       }
+    });
+    workers.allowCoreThreadTimeOut(true);
+    multiMaxConcurrency = Math.max(1, ConnectionPool.getInt(settings, MULTI_MAX_CONCURRENCY, 4));
+    compression = new Compression(settings);
+    queryStats = new QueryStats(settings);
+
+    // Published for MLSQLStatus and JMX
+    metrics = new Metrics(datasources, transactions, cursors, resultCache, queryStats);
+    getServletContext().setAttribute(Metrics.CONTEXT_ATTRIBUTE + getServletName(), metrics);
+    try {
+      mbeanName = new ObjectName("com.xqdev.sql:type=MLSQL,name=" + ObjectName.quote(getServletName()));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(metrics), mbeanName);
+    }
+    catch (Exception e) {
+      // Most likely a second deployment using the same servlet name
+      Log.log("Warning: could not register the metrics with JMX", e);
+      mbeanName = null;
     }
-    catch (ClassNotFoundException e) {  // db driver couldn't be found
-      initProblemDriverUnavailable = "Could not load driver class '" + driver + "', unable to contact database";
-      Log.log(initProblemDriverUnavailable);
+  }
+
+  public void destroy() {
+    if (mbeanName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+      }
+      catch (Exception e) {
+        Log.log("Warning: could not unregister the metrics from JMX", e);
+      }
     }
+    getServletContext().removeAttribute(Metrics.CONTEXT_ATTRIBUTE + getServletName());
+    if (transactions != null) transactions.close();
+    if (cursors != null) cursors.close();
+    if (resultCache != null) resultCache.close();
+    if (workers != null) workers.shutdownNow();
+    if (datasources != null) datasources.close();
+    if (housekeeper != null) housekeeper.shutdown();
+    if (statementTimer != null) statementTimer.shutdown();
+    Log.shutdown();
+    super.destroy();
+  }
+
+  /**
+   * Reads the datasources file, given either as a path within the webapp
+   * (like /WEB-INF/datasources.properties) or as a file system path.
+   * Problems are logged rather than thrown, so the datasource set up in
+   * web.xml, if any, still works.
+   */
+  private Properties loadDatasourcesFile(String path) {
+    if (path == null || path.trim().length() == 0) {
+      return null;
+    }
+    path = path.trim();
+    InputStream in = null;
+    try {
+      in = getServletContext().getResourceAsStream(path.startsWith("/") ? path : "/" + path);
+      if (in == null) {
+        in = new FileInputStream(path);
+      }
+      Properties file = new Properties();
+      if (path.endsWith(".xml")) {
+        file.loadFromXML(in);
+      }
+      else {
+        file.load(in);
+      }
+      return file;
+    }
+    catch (IOException e) {
+      Log.log("Error: could not read datasources file '" + path + "'", e);
+      return null;
+    }
+    finally {
+      if (in != null) {
+        try { in.close(); } catch (IOException ignored) { }
+      }
+    }
+  }
+
+  private Properties getInitParameters() {
+    Properties settings = new Properties();
+    Enumeration<?> names = getInitParameterNames();
+    while (names.hasMoreElements()) {
+      String name = (String) names.nextElement();
+      settings.put(name, getInitParameter(name));
+    }
+    return settings;
   }
 
   protected void doGet(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
@@ -88,85 +203,494 @@ public class MLSQL extends HttpServlet {
   }
 
   protected void doPost(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
-    res.setContentType("text/xml");
-
-    Namespace sql = Namespace.getNamespace("sql", "http://xqdev.com/sql");
-    Document responseDoc = new Document();
-    Element root = new Element("result", sql);
-    Element meta = new Element("meta", sql);
-    responseDoc.setRootElement(root);
-    root.addContent(meta);
-
-    Document requestDoc = null;
+    long start = System.nanoTime();
+    SqlRequest request = null;
+    Exception problem = null;
     try {
       // Normally the request comes via the post body,
       // but we let you bookmark w/ a query string
       String postbody = req.getParameter("postbody");
       if (postbody != null) {
-        SAXBuilder builder = new SAXBuilder();
-        requestDoc = builder.build(new StringReader(postbody));
+        request = RequestDecoder.decode(new StringReader(postbody));
       }
       else {
-        InputStream in = req.getInputStream();
-        SAXBuilder builder = new SAXBuilder();
-        requestDoc = builder.build(in);
+        request = RequestDecoder.decode(Compression.requestBody(req));
       }
     }
     catch (Exception e) {
-      addExceptions(meta, e);
-      // Now write the error and return
-      OutputStream out = res.getOutputStream();
-      new XMLOutputter().output(responseDoc, out);
-      out.flush();
-      return;
+      problem = e;
+    }
+    long parsed = System.nanoTime() - start;
+
+    // The format has to be known before the first byte goes out, so a
+    // request that couldn't be read gets its error in whatever the
+    // Accept header asks for, and one naming a format we don't have gets
+    // it in XML
+    String format = ResultWriter.XML;
+    try {
+      format = ResultWriter.formatFor(request != null ? request.getOption("format") : null, req.getHeader("Accept"));
+    }
+    catch (IllegalArgumentException e) {
+      if (problem == null) problem = e;
+    }
+
+    ResultWriter writer = null;
+    Compression.ResponseStream out = compression.open(req, res);
+    try {
+      if (problem == null && request.type.equalsIgnoreCase("export")) {
+        writer = new ExportResultWriter(out, request.getOption(ExportResultWriter.URI_TEMPLATE),
+                request.getIntOption(ExportResultWriter.ROWS_PER_DOCUMENT, 1));
+      }
+      else {
+        writer = ResultWriter.create(format, out);
+      }
+      res.setContentType(writer.getContentType());
+      writer.timings.started = start;
+      writer.timings.add(Metrics.Phase.PARSE, parsed);
+      writer.startDocument();
+      if (problem != null) {
+        writer.addExceptions(problem);
+      }
+      else {
+        // Rows are written as rs.next() advances, so nothing here holds a
+        // whole result set in memory
+        writer.timings.type = request.type;
+        execute(request, writer);
+      }
+      writer.endDocument();
+    }
+    catch (XMLStreamException e) {
+      // Nothing more can be written, most likely the client went away
+      Log.log(e);
+    }
+    finally {
+      try {
+        out.close();
+      }
+      catch (IOException e) {
+        // As above, the client went away
+      }
+      if (writer != null) metrics.record(writer.timings, System.nanoTime() - start, writer.getBytesWritten());
+      metrics.recordWire(out.getWireBytes(), out.isCompressed());
     }
+  }
 
+  /**
+   * Executes a decoded request, writing any failure to the writer.
+   */
+  private void execute(SqlRequest request, ResultWriter writer) throws IOException, XMLStreamException {
+    ConnectionPool pool = null;
     Connection con = null;
+    TransactionManager.Transaction tx = null;
+    CursorManager.Cursor cursor = null;
+    boolean keepCursor = false;
+    Throttle throttle = null;
     try {
-      Namespace[] namespaces = new Namespace[]{ sql };
-      XPathHelper xpath = new XPathHelper(requestDoc, namespaces);
+      String type = request.type;
+      String txId = request.getOption("transaction");
+
+      if (type.equalsIgnoreCase("begin")) {
+        DatasourceRegistry.Datasource ds = datasources.get(request.getOption("datasource"));
+        writer.timings.datasource = ds.name;
+        tx = transactions.begin(ds);
+        writer.addTransaction(tx.id);
+      }
+      else if (type.equalsIgnoreCase("commit")) {
+        transactions.commit(txId);
+      }
+      else if (type.equalsIgnoreCase("rollback")) {
+        transactions.rollback(txId);
+      }
+      else if (type.equalsIgnoreCase("multi")) {
+        if (txId.length() > 0) {
+          throw new SQLException("A multi request can't run within a transaction, its statements each need a connection");
+        }
+        executeMulti(request, writer);
+      }
+      else if (type.equalsIgnoreCase("fetch")) {
+        cursor = cursors.acquire(request.getOption("cursor"));
+        writer.timings.datasource = cursor.ds.name;
+        cursor.ds.throttle.enter(-1);
+        throttle = cursor.ds.throttle;
+        keepCursor = fetchPage(cursor, request.getIntOption("page-size", cursor.pageSize), writer);
+      }
+      else if (type.equalsIgnoreCase("close")) {
+        cursors.close(request.getOption("cursor"));
+      }
+      else if (type.equalsIgnoreCase("invalidate")) {
+        // Nothing to run, the invalidate option is handled below
+      }
+      else if (type.equalsIgnoreCase("select") && request.getIntOption("page-size", 0) > 0) {
+        if (txId.length() > 0) {
+          throw new SQLException("A cursor can't be opened within a transaction, it reads on a connection of its own");
+        }
+        DatasourceRegistry.Datasource ds = datasources.get(request.getOption("datasource"));
+        writer.timings.datasource = ds.name;
+        ds.throttle.enter(request.getIntOption("query-timeout", -1));
+        throttle = ds.throttle;
+        cursor = cursors.open(ds);
+        long started = System.nanoTime();
+        int exceptions = writer.getExceptionCount();
+        boolean finished = false;
+        try {
+          openCursor(cursor, request, writer);
+          keepCursor = fetchPage(cursor, cursor.pageSize, writer);
+          finished = true;
+        }
+        finally {
+          // Only the first page counts, later fetches don't carry the SQL
+          queryStats.record(ds.name, request, System.nanoTime() - started, writer.timings.rows, writer.getBytesWritten(),
+                  !finished || writer.getExceptionCount() > exceptions);
+        }
+      }
+      else {
+        // Selects outside a transaction may be answered from the cache
+        String cacheKey = null;
+        long cacheGeneration = 0;
+        byte[] cached = null;
+        if (type.equalsIgnoreCase("select") && txId.length() == 0 &&
+                request.getIntOption("cache-ttl", 0) > 0 && resultCache.isEnabled()) {
+          cacheKey = ResultCache.keyFor(datasources.get(request.getOption("datasource")).name, request,
+                                       writer.getFormat());
+          // Read first, so an invalidation from here on keeps these rows out
+          cacheGeneration = resultCache.getGeneration();
+          cached = resultCache.get(cacheKey);
+        }
 
-      String type = xpath.getString("/sql:request/sql:type");
-      String query = xpath.getString("/sql:request/sql:query");
-      int maxRows = xpath.getInt("/sql:request/sql:execute-options/sql:max-rows", -1);
-      int queryTimeout = xpath.getInt("/sql:request/sql:execute-options/sql:query-timeout", -1);
-      int maxFieldSize = xpath.getInt("/sql:request/sql:execute-options/sql:max-field-size", -1);
-      List<Element> params = xpath.getElements("/sql:request/sql:execute-options/sql:parameters/sql:parameter");
+        if (cached != null) {
+          writer.addCaptured(cached);
+        }
+        else {
+          // A transaction stays on the datasource it began on
+          DatasourceRegistry.Datasource ds;
+          if (txId.length() > 0) {
+            tx = transactions.acquire(txId);
+            ds = tx.ds;
+          }
+          else {
+            ds = datasources.get(request.getOption("datasource"));
+          }
+          writer.timings.datasource = ds.name;
+          // Wait for a turn before taking a connection, so the wait is in one place
+          ds.throttle.enter(request.getIntOption("query-timeout", -1));
+          throttle = ds.throttle;
+          if (tx != null) {
+            pool = tx.pool;
+            con = tx.con;
+          }
+          else {
+            pool = ds.getPool();
+            con = pool.getConnection();
+          }
 
-      con = pool.getConnection();
+          if (type.equalsIgnoreCase("script")) {
+            executeScript(ds, pool, con, request.statements, tx == null, writer);
+          }
+          else {
+            executeStatement(ds, pool, con, request, cacheKey, cacheGeneration, writer);
+          }
+        }
+      }
+    }
+    catch (XMLStreamException e) {
+      throw e;
+    }
+    catch (SQLException e) {
+      // With its SQLState, so a client can tell "busy, try again" (08004) from a real failure
+      writer.addExceptions(e);
+      if (!(e instanceof SQLTransientException)) writer.logException(e);
+    }
+    catch (Exception e) {
+      writer.addExceptions(e);
+    }
+    finally {
+      // Even a failed update may have changed something, so always invalidate
+      String invalidate = request.getOption("invalidate");
+      if (invalidate.length() > 0) resultCache.invalidate(invalidate);
+
+      if (tx != null) transactions.release(tx);
+      else if (con != null) pool.returnConnection(con, writer.timings.hasConnectionError());
+      if (throttle != null) throttle.leave();
+      if (cursor != null) {
+        // A cursor that's read to the end or failed part way has nothing more to give
+        if (keepCursor) cursors.release(cursor);
+        else cursors.close(cursor);
+      }
+    }
+  }
 
-      PreparedStatement stmt = null;
+  /**
+   * Runs the statements of a "multi" request at the same time, each on a
+   * connection of its own, and writes one nested sql:result per
+   * statement in request order.  At most <code>multi-max-concurrency</code>
+   * statements of one request run at once (fewer if the request asks
+   * with <code>max-concurrency</code>), on the shared pool of
+   * <code>multi-threads</code> workers plus the request's own thread.
+   * When the workers are all busy the request thread simply does more of
+   * the work itself.
+   *
+   * Unlike a script, the statements are independent: each commits on its
+   * own and one failing doesn't stop the others.  Since they finish in
+   * any order, each result is buffered until those before it have been
+   * written, so very large selects are better read through a cursor.
+   */
+  private void executeMulti(SqlRequest request, ResultWriter writer) throws IOException, XMLStreamException {
+    final String format = writer.getFormat();
+    final List<SqlRequest> requests = request.statements;
+    final ByteArrayOutputStream[] results = new ByteArrayOutputStream[requests.size()];
+    final CountDownLatch[] done = new CountDownLatch[requests.size()];
+    for (int i = 0; i < done.length; i++) {
+      done[i] = new CountDownLatch(1);
+    }
+    final AtomicInteger next = new AtomicInteger();
+    Runnable worker = new Runnable() {
+      public void run() {
+        int i;
+        while ((i = next.getAndIncrement()) < requests.size()) {
+          try {
+            results[i] = executeBuffered(requests.get(i), format);
+          }
+          finally {
+            done[i].countDown();
+          }
+        }
+      }
+    };
+
+    int concurrency = Math.min(multiMaxConcurrency, request.getIntOption("max-concurrency", multiMaxConcurrency));
+    int helpers = Math.min(concurrency, requests.size()) - 1;
+    try {
+      for (int i = 0; i < helpers; i++) {
+        workers.execute(worker);
+      }
+    }
+    catch (RejectedExecutionException e) {
+      // Queue full, this thread picks up the slack
+    }
+    worker.run();
 
-      if (type.equalsIgnoreCase("procedure")) {
-        stmt = con.prepareCall(query);
+    for (int i = 0; i < results.length; i++) {
+      try {
+        done[i].await();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for statement " + (i + 1) + " of a multi request");
+      }
+      if (results[i] != null) {
+        writer.addFragment(results[i]);
       }
       else {
-        // Note this call depends on JDBC 3.0 (accompanying Java 1.4).
-        // The call without the 2nd argument would work on earlier JVMs,
-        // you just won't catch any generated keys.
-        stmt = con.prepareStatement(query, Statement.RETURN_GENERATED_KEYS);
+        writer.startResult();
+        writer.addExceptions(new SQLException("Statement " + (i + 1) + " of the multi request failed, see the server log"));
+        writer.endResult();
+      }
+    }
+  }
+
+  /**
+   * Executes one statement of a multi request into a buffer holding its
+   * sql:result, written in the given format so it can be copied into the
+   * multi request's response, or returns null if the result couldn't be
+   * written.
+   */
+  private ByteArrayOutputStream executeBuffered(SqlRequest request, String format) {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    long start = System.nanoTime();
+    try {
+      ResultWriter writer = ResultWriter.create(format, buffer);
+      writer.timings.type = request.type;
+      writer.startFragment();
+      try {
+        String type = request.type;
+        if (type.equalsIgnoreCase("begin") || type.equalsIgnoreCase("commit") ||
+                type.equalsIgnoreCase("rollback") || type.equalsIgnoreCase("multi") ||
+                type.equalsIgnoreCase("fetch") || type.equalsIgnoreCase("close")) {
+          throw new IllegalArgumentException("Request type '" + type + "' isn't allowed within a multi request");
+        }
+        if (request.getIntOption("page-size", 0) > 0 || request.getOption("transaction").length() > 0) {
+          throw new IllegalArgumentException("Cursors and transactions aren't allowed within a multi request");
+        }
+        execute(request, writer);
+      }
+      catch (IllegalArgumentException e) {
+        writer.addExceptions(e);
       }
+      writer.endDocument();
+      // The bytes are counted once copied into the multi request's response
+      metrics.record(writer.timings, System.nanoTime() - start, 0);
+    }
+    catch (Exception e) {
+      // Only a bug could get here, writing to memory doesn't fail
+      Log.log(e);
+      return null;
+    }
+    return buffer;
+  }
+
+  /**
+   * Runs each statement of a script in order, one nested sql:result per
+   * statement, stopping at the first one that fails.  When
+   * <code>commit</code> is true the script is its own transaction,
+   * committed if every statement succeeded and rolled back otherwise.
+   * When it's false the script is part of a larger transaction that the
+   * client finishes itself.
+   */
+  private void executeScript(DatasourceRegistry.Datasource ds, ConnectionPool pool, Connection con, List<SqlRequest> requests,
+                             boolean commit, ResultWriter writer)
+          throws SQLException, XMLStreamException {
+    boolean autoCommit = con.getAutoCommit();
+    if (commit) con.setAutoCommit(false);
+    try {
+      boolean failed = false;
+      for (SqlRequest request : requests) {
+        int exceptions = writer.getExceptionCount();
+        writer.startResult();
+        try {
+          String type = request.type;
+          if (type.equalsIgnoreCase("begin") || type.equalsIgnoreCase("commit") ||
+                  type.equalsIgnoreCase("rollback") || type.equalsIgnoreCase("script") ||
+                  type.equalsIgnoreCase("fetch") || type.equalsIgnoreCase("close")) {
+            throw new IllegalArgumentException("Request type '" + type + "' isn't allowed within a script");
+          }
+          if (request.getIntOption("page-size", 0) > 0) {
+            throw new IllegalArgumentException("A cursor can't be opened within a script");
+          }
+          executeStatement(ds, pool, con, request, null, 0, writer);
+        }
+        catch (XMLStreamException e) {
+          throw e;
+        }
+        catch (Exception e) {
+          writer.addExceptions(e);
+        }
+        writer.endResult();
+        if (writer.getExceptionCount() > exceptions) {
+          failed = true;
+          break;
+        }
+      }
+      if (commit) {
+        if (failed) con.rollback();
+        else con.commit();
+      }
+    }
+    catch (SQLException e) {
+      if (commit) con.rollback();
+      throw e;
+    }
+    finally {
+      if (commit) con.setAutoCommit(autoCommit);
+    }
+  }
+
+  /**
+   * Executes the single statement described by a request on the given
+   * connection, taken from the given pool, and streams the outcome to the
+   * writer.  When there's a <code>cacheKey</code> the rows of a select are
+   * also kept in the result cache, unless they were invalidated after the
+   * <code>cacheGeneration</code> the select was looked up in.  The datasource's throttle cancels the
+   * statement if it runs past its query-timeout, and its fetch sizer says
+   * how many rows of a select come back per round trip.
+   */
+  private void executeStatement(DatasourceRegistry.Datasource ds, ConnectionPool pool, Connection con,
+                                SqlRequest request, String cacheKey, long cacheGeneration,
+                                ResultWriter writer) throws Exception {
+    StatementCache statements = null;
+    PreparedStatement stmt = null;
+    Throttle.Deadline deadline = null;
+    boolean timedOut = false;
+    boolean finished = false;
+    long started = System.nanoTime();
+    long rowsBefore = writer.timings.rows;
+    long bytesBefore = writer.getBytesWritten();
+    int exceptionsBefore = writer.getExceptionCount();
+    try {
+      String type = request.type;
+      String query = request.query;
+      int maxRows = request.getIntOption("max-rows", -1);
+      int queryTimeout = request.getIntOption("query-timeout", -1);
+      int maxFieldSize = request.getIntOption("max-field-size", -1);
+      String fetchSize = request.getOption(FetchSizer.FETCH_SIZE);
+      boolean typed = "true".equalsIgnoreCase(request.getOption("typed"));
+      SqlRequest.Parameter[] params = request.parameters;
+
+      statements = pool.getStatementCache(con);
+
+      if (type.equalsIgnoreCase("export") && !(writer instanceof ExportResultWriter)) {
+        throw new IllegalArgumentException("An export has a response of its own, it can't be part of a script or multi request");
+      }
+
+      boolean callable = type.equalsIgnoreCase("procedure");
+      stmt = statements.prepare(query, callable, !callable);
       configureStatement(stmt, maxRows, queryTimeout, maxFieldSize);
-      parameterizeStatement(stmt, params);
+      boolean select = type.equalsIgnoreCase("select") || type.equalsIgnoreCase("export");
+      if (select) {
+        // Always set, the cached statement may still have the last request's
+        stmt.setFetchSize(ds.fetchSizer.forSelect(query, fetchSize, maxRows));
+      }
+      // Covers reading the rows too, which the driver's own timeout usually doesn't
+      deadline = ds.throttle.watch(stmt, queryTimeout);
 
-      if (type.equalsIgnoreCase("select")) {
+      if (type.equalsIgnoreCase("batch")) {
+        // Each sql:parameters block is one row of the batch
+        int batchSize = request.getIntOption("batch-size", DEFAULT_BATCH_SIZE);
+        executeBatch(writer, stmt, request.parameterSets, batchSize);
+      }
+      else {
+        long start = System.nanoTime();
+        parameterizeStatement(stmt, params);
+        writer.timings.add(Metrics.Phase.BIND, System.nanoTime() - start);
+      }
+
+      if (select) {
         try {
+          long start = System.nanoTime();
           ResultSet rs = stmt.executeQuery();
-          addWarnings(meta, stmt.getWarnings());
-          addResultSet(root, rs);
+          writer.timings.add(Metrics.Phase.EXECUTE, System.nanoTime() - start);
+          long bytes = writer.getBytesWritten();
+          long rowsRead = writer.timings.rows;
+          try {
+            ds.fetchSizer.executed(query, fetchSize, rs, maxRows);
+            writer.addWarnings(stmt.getWarnings());
+            if (cacheKey == null) {
+              writer.addResultSet(rs, typed);
+            }
+            else {
+              byte[] rows = null;
+              writer.startCapture(resultCache.getMaxEntryBytes());
+              try {
+                writer.addResultSet(rs, typed);
+              }
+              finally {
+                rows = writer.endCapture();
+              }
+              // Not reached if reading the rows failed part way
+              if (rows != null) {
+                resultCache.put(cacheKey, rows, request.getIntOption("cache-ttl", 0), request.getOption("cache-tags"),
+                        cacheGeneration);
+              }
+            }
+            ds.fetchSizer.read(query, writer.getBytesWritten() - bytes, writer.timings.rows - rowsRead);
+          }
+          finally {
+            rs.close();
+          }
         }
         catch (SQLException e) {
-          addExceptions(meta, e);
-          Log.log(e);
+          writer.addExceptions(e);
+          writer.logException(e);
         }
       }
       else if (type.equalsIgnoreCase("update")) {
         try {
+          long start = System.nanoTime();
           int count = stmt.executeUpdate();
-          addWarnings(meta, stmt.getWarnings());
-          addUpdateCount(meta, count);
+          writer.timings.add(Metrics.Phase.EXECUTE, System.nanoTime() - start);
+          writer.addWarnings(stmt.getWarnings());
+          writer.addUpdateCount(count);
           try {
-            addGeneratedKeys(meta, stmt.getGeneratedKeys());
+            writer.addGeneratedKeys(stmt.getGeneratedKeys());
           }
           catch (SQLException e) {
             // Generated keys are available on INSERT calls but not UPDATE calls
@@ -174,178 +698,172 @@ public class MLSQL extends HttpServlet {
           }
         }
         catch (SQLException e) {
-          addExceptions(meta, e);
+          writer.addExceptions(e);
         }
       }
+      else if (type.equalsIgnoreCase("batch")) {
+        // Already executed above
+      }
       else if (type.equalsIgnoreCase("procedure")) {
+        long start = System.nanoTime();
         boolean isResultSet = stmt.execute();
+        writer.timings.add(Metrics.Phase.EXECUTE, System.nanoTime() - start);
         if (isResultSet) {
-          addResultSet(root, stmt.getResultSet());
-          addOutParam(root, stmt, params);
+          writer.addResultSet(stmt.getResultSet(), typed);
+          addOutParam(writer, stmt, params);
         }
         else {
-          addOutParam(root, stmt, params);
+          addOutParam(writer, stmt, params);
         }
       }
       else {
         try {
+          long start = System.nanoTime();
           boolean isResultSet = stmt.execute();
-          addWarnings(meta, stmt.getWarnings());
+          writer.timings.add(Metrics.Phase.EXECUTE, System.nanoTime() - start);
+          writer.addWarnings(stmt.getWarnings());
           if (isResultSet) {
-            addResultSet(root, stmt.getResultSet());
+            writer.addResultSet(stmt.getResultSet(), typed);
           }
           else {
-            addUpdateCount(meta, stmt.getUpdateCount());
-            addGeneratedKeys(meta, stmt.getGeneratedKeys());
+            writer.addUpdateCount(stmt.getUpdateCount());
+            writer.addGeneratedKeys(stmt.getGeneratedKeys());
           }
         }
         catch (SQLException e) {
-          addExceptions(meta, e);
+          writer.addExceptions(e);
         }
       }
-      // Close the statement holding the connection to the JDBC Server
-      stmt.close();
+      finished = true;
     }
-    catch (Exception e) {
-      addExceptions(meta, e);
+    catch (SQLException e) {
+      if (deadline != null && deadline.stop()) throw deadline.exception(e);
+      throw e;
     }
     finally {
-      if (con != null) pool.returnConnection(con);
+      // Stopped before the statement goes back for reuse by the next request with the same SQL
+      if (deadline != null) timedOut = deadline.stop();
+      if (stmt != null) statements.release(stmt);
+      queryStats.record(ds.name, request, System.nanoTime() - started, writer.timings.rows - rowsBefore,
+              writer.getBytesWritten() - bytesBefore,
+              !finished || timedOut || writer.getExceptionCount() > exceptionsBefore);
+    }
+    if (timedOut) {
+      // The driver's own exception from the cancel, if any, has been written already
+      writer.addExceptions(deadline.exception(null));
     }
-
-    OutputStream out = res.getOutputStream();
-    new XMLOutputter().output(responseDoc, out);
-    out.flush();
   }
 
-  private static void addOutParam(Element root, PreparedStatement stmt, List<Element> params) throws SQLException {
-    Namespace sql = root.getNamespace();
-    CallableStatement callableStmt = (CallableStatement) stmt;
-
-    for (int i = 1; i < params.size() + 1; i++) {
-      Element element = params.get(i - 1);
-      String out = element.getAttributeValue("out");
-      String paramType = element.getAttributeValue("type");
-
-      if ("true".equalsIgnoreCase(out)) {
-        Element parameter = new Element("parameter", sql);
-        parameter.setAttribute("index", String.valueOf(i));
-        parameter.setText(TypeMapping.getStringValue(callableStmt, paramType, i));
-        root.addContent(parameter);
-      }
+  /**
+   * Executes a select for a new cursor.  The statement isn't taken from
+   * the statement cache, since it stays open for as long as the cursor.
+   */
+  private static void openCursor(CursorManager.Cursor cursor, SqlRequest request, ResultWriter writer)
+          throws SQLException, ParseException, XMLStreamException {
+    cursor.pageSize = request.getIntOption("page-size", 0);
+    cursor.typed = "true".equalsIgnoreCase(request.getOption("typed"));
+    cursor.stmt = cursor.con.prepareStatement(request.query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    configureStatement(cursor.stmt, request.getIntOption("max-rows", -1), request.getIntOption("query-timeout", -1),
+            request.getIntOption("max-field-size", -1));
+    // Have the driver bring back a page's worth of rows per round trip
+    cursor.stmt.setFetchSize(cursor.ds.fetchSizer.forCursor(cursor.pageSize));
+    long start = System.nanoTime();
+    parameterizeStatement(cursor.stmt, request.parameters);
+    long bound = System.nanoTime();
+    Throttle.Deadline deadline = cursor.ds.throttle.watch(cursor.stmt, request.getIntOption("query-timeout", -1));
+    try {
+      cursor.rs = cursor.stmt.executeQuery();
+    }
+    catch (SQLException e) {
+      if (deadline.stop()) throw deadline.exception(e);
+      throw e;
     }
+    deadline.stop();
+    writer.timings.add(Metrics.Phase.BIND, bound - start);
+    writer.timings.add(Metrics.Phase.EXECUTE, System.nanoTime() - bound);
+    writer.addWarnings(cursor.stmt.getWarnings());
+    cursor.columns = Column.describe(cursor.rs.getMetaData());
   }
 
-  private static void addUpdateCount(Element meta, int count) {
-    Namespace sql = meta.getNamespace();
-    meta.addContent(
-            new Element("rows-affected", sql).setText("" + count)
-    );
+  /**
+   * Writes the cursor's next page of rows, followed by the cursor id if
+   * there are rows left after it.  Returns whether there are.
+   */
+  private static boolean fetchPage(CursorManager.Cursor cursor, int pageSize, ResultWriter writer)
+          throws SQLException, IOException, XMLStreamException {
+    if (pageSize < 1) pageSize = cursor.pageSize;
+    cursor.onRow = writer.addRows(cursor.rs, cursor.columns, cursor.typed, pageSize, cursor.onRow);
+    if (cursor.onRow) {
+      writer.addCursor(cursor.id);
+    }
+    return cursor.onRow;
   }
 
-  private static void addGeneratedKeys(Element meta, ResultSet keys) throws SQLException {
-    Namespace sql = meta.getNamespace();
-    while (keys.next()) {  // should only be one
-      meta.addContent(
-              new Element("generated-key", sql).setText("" + keys.getString(1))
-      );
+  private static void addOutParam(ResultWriter writer, PreparedStatement stmt, SqlRequest.Parameter[] params)
+          throws SQLException, XMLStreamException {
+    CallableStatement callableStmt = (CallableStatement) stmt;
+
+    for (int i = 1; i < params.length + 1; i++) {
+      SqlRequest.Parameter param = params[i - 1];
+
+      if (param.out) {
+        writer.addOutParam(i, TypeMapping.getStringValue(callableStmt, param.type, i));
+      }
     }
   }
 
-  private static void addResultSet(Element root, ResultSet rs) throws SQLException {
-    Namespace sql = root.getNamespace();
-
-    ResultSetMetaData rsmd = rs.getMetaData();
-    int columnCount = rsmd.getColumnCount();
-    while (rs.next()) {
-      Element tuple = new Element("tuple", sql);
-      for (int i = 1; i <= columnCount; i++) {
-        String colName = rsmd.getColumnName(i);  // names aren't guaranteed OK in xml
-        String colTypeName = rsmd.getColumnTypeName(i);
-        
-        // Decode a BLOB if one is found and place it into the result as a encoded Base 64 string
-        String colValue = "";
-        if ("BLOB".equalsIgnoreCase(colTypeName)) {
-            Blob b = rs.getBlob(i);
-            if (b != null && b.length() > 0) {
-                Base64 b64 = new Base64();
-                String b64Blob = b64.encodeBase64String(b.getBytes(1, (int) b.length()));
-                colValue = b64Blob;
-            } else
-                colValue = "";
-        } else {
-            colValue = rs.getString(i);
-        }
-        
-        
-        boolean wasNull = rs.wasNull();
-        Element elt = new Element(colName);
-        if (wasNull) {
-          elt.setAttribute("null", "true");
-        }
-        if ("UNKNOWN".equalsIgnoreCase(colTypeName)) {
-          tuple.addContent(elt.setText("UNKNOWN TYPE"));  // XXX ugly
-        }
-        else {
-          tuple.addContent(elt.setText(colValue));
+  /**
+   * Binds and executes one row per sql:parameters block, sending them to
+   * the database in chunks of <code>batchSize</code>.  Writes one
+   * sql:rows-affected per row, in order, and each chunk's generated keys
+   * as it completes.
+   */
+  private static void executeBatch(ResultWriter writer, PreparedStatement stmt, List<SqlRequest.Parameter[]> paramSets,
+                                   int batchSize)
+          throws SQLException, ParseException, XMLStreamException {
+    if (batchSize < 1) batchSize = DEFAULT_BATCH_SIZE;
+    int pending = 0;
+    try {
+      for (SqlRequest.Parameter[] params : paramSets) {
+        long start = System.nanoTime();
+        parameterizeStatement(stmt, params);
+        stmt.addBatch();
+        writer.timings.add(Metrics.Phase.BIND, System.nanoTime() - start);
+        if (++pending == batchSize) {
+          flushBatch(writer, stmt);
+          pending = 0;
         }
       }
-      root.addContent(tuple);
+      if (pending > 0) {
+        flushBatch(writer, stmt);
+      }
+    }
+    catch (BatchUpdateException e) {
+      // Report the counts for the rows the driver did process in this chunk
+      int[] counts = e.getUpdateCounts();
+      if (counts != null) {
+        for (int count : counts) writer.addUpdateCount(count);
+      }
+      writer.addExceptions(e);
     }
-    
-  }
-
-  private static void addExceptions(Element meta, Throwable t) {
-    if (t == null) return;
-
-    Namespace sql = meta.getNamespace();
-    Element exceptions = new Element("exceptions", sql);
-    meta.addContent(exceptions);
-    do {
-      exceptions.addContent(
-              new Element("exception", sql)
-                      .setAttribute("type", t.getClass().getName())
-                      .addContent(new Element("reason", sql).setText(t.getMessage()))
-      );
-      Log.log(t);
-      t = t.getCause();
-    } while (t != null);
-  }
-
-  private static void addExceptions(Element meta, SQLException e) {
-    if (e == null) return;
-
-    Namespace sql = meta.getNamespace();
-    Element exceptions = new Element("exceptions", sql);
-    meta.addContent(exceptions);
-    do {
-      exceptions.addContent(
-              new Element("exception", sql)
-                      .setAttribute("type", e.getClass().getName())
-                      .addContent(new Element("reason", sql).setText(e.getMessage()))
-                      .addContent(new Element("sql-state", sql).setText(e.getSQLState()))
-                      .addContent(new Element("vendor-code", sql).setText("" + e.getErrorCode()))
-      );
-      e = e.getNextException();
-    } while (e != null);
   }
 
-  private static void addWarnings(Element meta, SQLWarning w) {
-    if (w == null) return;
-
-    Namespace sql = meta.getNamespace();
-    Element warnings = new Element("warnings", sql);
-    meta.addContent(warnings);
-    do {
-      warnings.addContent(
-              new Element("warning", sql)
-                      .setAttribute("type", w.getClass().getName())
-                      .addContent(new Element("reason", sql).setText(w.getMessage()))
-                      .addContent(new Element("sql-state", sql).setText(w.getSQLState()))
-                      .addContent(new Element("vendor-code", sql).setText("" + w.getErrorCode()))
-      );
-      w = w.getNextWarning();
-    } while (w != null);
+  private static void flushBatch(ResultWriter writer, PreparedStatement stmt)
+          throws SQLException, XMLStreamException {
+    long start = System.nanoTime();
+    int[] counts = stmt.executeBatch();
+    writer.timings.add(Metrics.Phase.EXECUTE, System.nanoTime() - start);
+    writer.addWarnings(stmt.getWarnings());
+    stmt.clearWarnings();
+    for (int count : counts) {
+      writer.addUpdateCount(count);
+    }
+    try {
+      writer.addGeneratedKeys(stmt.getGeneratedKeys());
+    }
+    catch (SQLException e) {
+      // Not every statement or driver produces generated keys for a batch
+    }
   }
 
   private static void configureStatement(PreparedStatement stmt, int maxRows, int queryTimeout, int maxFieldSize)
@@ -361,20 +879,20 @@ public class MLSQL extends HttpServlet {
     }
   }
 
-  private static void parameterizeStatement(PreparedStatement stmt, List<Element> params)
+  private static void parameterizeStatement(PreparedStatement stmt, SqlRequest.Parameter[] params)
           throws SQLException, NumberFormatException, ParseException {
     // Presently we accept these types:
-    // boolean, date, double, float, int,
-    // long, short, string, time, timestamp.
+    // bigdecimal, boolean, date, double, float, int,
+    // long, short, string, time, timestamp,
+    // and Base64 encoded blob and longvarbinary.
     // We also accept a null flag.
-    // XXX Might be nice to support blobs and clobs, BigDecimal
+    // XXX Might be nice to support clobs
     int paramPosition = 0;
-    for (Element param : params) {
+    for (SqlRequest.Parameter param : params) {
       paramPosition++;
-      String paramType = param.getAttributeValue("type");
-      String outType = param.getAttributeValue("out");
+      String paramType = param.type;
 
-      if ("true".equalsIgnoreCase(outType)) {
+      if (param.out) {
         if (!(stmt instanceof CallableStatement)) {
             String s = "Out parameters only allowed on stored procedures";
             Log.log(s);
@@ -384,8 +902,8 @@ public class MLSQL extends HttpServlet {
         ((CallableStatement)stmt).registerOutParameter(paramPosition, TypeMapping.getSqlDataType(paramType));
       }
       else {
-        String paramValue = param.getText();
-        boolean paramNull = "true".equalsIgnoreCase(param.getAttributeValue("null"));
+        String paramValue = param.value;
+        boolean paramNull = param.isNull;
 
         if (paramType == null) {
           String s = "No parameter type received: " + paramType + " with value: " + paramValue;
@@ -0,0 +1,203 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.io.*;
+import java.util.*;
+import javax.servlet.*;
+import javax.servlet.http.*;
+
+/**
+ * Shows the {@link Metrics} of an MLSQL servlet in the same webapp, as
+ * plain "name value" lines or, with <code>?format=json</code> (or an
+ * Accept header asking for JSON), as one flat JSON object.  Latencies are
+ * in microseconds.
+ *
+ * With <code>?report=queries</code> it lists instead the statements,
+ * by fingerprint, that took the most total time, as tab separated
+ * columns or a JSON array.  <code>top</code> says how many (default 20)
+ * and <code>sort</code> ranks them by something else: calls, mean, p99,
+ * max, rows, bytes or errors.  See {@link QueryStats}.
+ *
+ * The <code>mlsql-servlet</code> init-param names the MLSQL servlet to
+ * report on (default "mlsql").  The same numbers are available over JMX
+ * as <code>com.xqdev.sql:type=MLSQL,name="mlsql"</code>.
+ */
+public class MLSQLStatus extends HttpServlet {
+
+  private static final long serialVersionUID = 1L;
+
+  private String target;
+
+  public void init(ServletConfig config) throws ServletException {
+    super.init(config);
+    target = getInitParameter("mlsql-servlet");
+    if (target == null || target.trim().length() == 0) {
+      target = "mlsql";
+    }
+  }
+
+  protected void doGet(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
+    Metrics metrics = (Metrics) getServletContext().getAttribute(Metrics.CONTEXT_ATTRIBUTE + target);
+    if (metrics == null) {
+      res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "MLSQL servlet '" + target + "' isn't running");
+      return;
+    }
+    String accept = req.getHeader("Accept");
+    boolean json = "json".equals(req.getParameter("format")) ||
+            (req.getParameter("format") == null && accept != null && accept.indexOf("application/json") >= 0);
+    res.setHeader("Cache-Control", "no-cache");
+
+    if ("queries".equals(req.getParameter("report"))) {
+      String sort = req.getParameter("sort");
+      if (sort == null) sort = "total";
+      if (!QueryStats.SORTS.contains(sort)) {
+        res.sendError(HttpServletResponse.SC_BAD_REQUEST, "sort must be one of " + QueryStats.SORTS);
+        return;
+      }
+      int top = 20;
+      try {
+        if (req.getParameter("top") != null) top = Math.max(1, Integer.parseInt(req.getParameter("top")));
+      }
+      catch (NumberFormatException e) {
+        res.sendError(HttpServletResponse.SC_BAD_REQUEST, "top must be a number");
+        return;
+      }
+      List<Map<String, Object>> rows = metrics.getQueryStats().top(sort, top);
+      if (json) {
+        res.setContentType("application/json; charset=UTF-8");
+        writeJsonRows(rows, res.getWriter());
+      }
+      else {
+        res.setContentType("text/plain; charset=UTF-8");
+        writeRows(rows, res.getWriter());
+      }
+      return;
+    }
+
+    Map<String, Object> values = metrics.snapshot();
+    if (json) {
+      res.setContentType("application/json; charset=UTF-8");
+      writeJson(values, res.getWriter());
+    }
+    else {
+      res.setContentType("text/plain; charset=UTF-8");
+      PrintWriter out = res.getWriter();
+      for (Map.Entry<String, Object> entry : values.entrySet()) {
+        out.print(entry.getKey());
+        out.print(' ');
+        out.println(entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * One line of column names, then a line per row, tab separated.
+   * Fingerprints are one line already, whitespace having been collapsed.
+   */
+  private static void writeRows(List<Map<String, Object>> rows, PrintWriter out) {
+    if (rows.isEmpty()) {
+      out.println("no statements recorded");
+      return;
+    }
+    boolean first = true;
+    for (String name : rows.get(0).keySet()) {
+      if (!first) out.print('\t');
+      first = false;
+      out.print(name);
+    }
+    out.println();
+    for (Map<String, Object> row : rows) {
+      first = true;
+      for (Object value : row.values()) {
+        if (!first) out.print('\t');
+        first = false;
+        out.print(value);
+      }
+      out.println();
+    }
+  }
+
+  private static void writeJsonRows(List<Map<String, Object>> rows, PrintWriter out) {
+    out.print('[');
+    boolean first = true;
+    for (Map<String, Object> row : rows) {
+      if (!first) out.print(',');
+      first = false;
+      out.print("\n  {");
+      boolean firstValue = true;
+      for (Map.Entry<String, Object> entry : row.entrySet()) {
+        if (!firstValue) out.print(", ");
+        firstValue = false;
+        writeJsonString(entry.getKey(), out);
+        out.print(": ");
+        writeJsonValue(entry.getValue(), out);
+      }
+      out.print('}');
+    }
+    out.println("\n]");
+  }
+
+  private static void writeJsonValue(Object value, PrintWriter out) {
+    if (value instanceof Number) out.print(value);
+    else writeJsonString(String.valueOf(value), out);
+  }
+
+  private static void writeJson(Map<String, Object> values, PrintWriter out) {
+    out.print('{');
+    boolean first = true;
+    for (Map.Entry<String, Object> entry : values.entrySet()) {
+      if (!first) out.print(',');
+      first = false;
+      out.print("\n  ");
+      writeJsonString(entry.getKey(), out);
+      out.print(": ");
+      writeJsonValue(entry.getValue(), out);
+    }
+    out.println("\n}");
+  }
+
+  static void writeJsonString(String s, PrintWriter out) {
+    out.print('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"': out.print("\\\""); break;
+        case '\\': out.print("\\\\"); break;
+        case '\n': out.print("\\n"); break;
+        case '\r': out.print("\\r"); break;
+        case '\t': out.print("\\t"); break;
+        default:
+          if (c < 0x20) {
+            out.print("\\u");
+            String hex = Integer.toHexString(c);
+            for (int pad = hex.length(); pad < 4; pad++) out.print('0');
+            out.print(hex);
+          }
+          else {
+            out.print(c);
+          }
+      }
+    }
+    out.print('"');
+  }
+}
@@ -0,0 +1,260 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what the servlet does: latency per request type, split into the
+ * phases a request goes through, rows and bytes sent, errors by SQLState,
+ * and the state of the throttles, pools, transactions, cursors and result
+ * cache.  Statistics per statement are kept by {@link QueryStats}.
+ *
+ * Each request fills in its own {@link Timings} as it goes, with no
+ * sharing, and hands them over once at the end, where they land in
+ * lock-free {@link Histogram}s and counters.  So measuring costs a few
+ * <code>System.nanoTime()</code> calls and atomic adds per request, plus
+ * two clock reads per row.
+ *
+ * Everything is read as one flat name/value map from {@link #snapshot},
+ * which backs both the JMX bean and the status servlet.
+ */
+class Metrics {
+
+  /** The ServletContext attribute, plus the servlet name, the metrics are published under */
+  public static final String CONTEXT_ATTRIBUTE = "com.xqdev.sql.metrics.";
+
+  enum Phase {
+    PARSE, BIND, EXECUTE, FETCH, SERIALIZE;
+
+    final String label = name().toLowerCase();
+  }
+
+  // Known request types get their own stats, anything else is lumped
+  // together ("invalid" is a request that couldn't be decoded)
+  private static final Set<String> TYPES = new HashSet<String>(Arrays.asList(
+          "select", "update", "execute", "procedure", "batch", "script", "multi", "export",
+          "begin", "commit", "rollback", "fetch", "close", "invalidate", "invalid"));
+
+  private long startedAt = System.currentTimeMillis();
+  private ConcurrentHashMap<String, TypeStats> byType = new ConcurrentHashMap<String, TypeStats>();
+  private ConcurrentHashMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+  private AtomicLong rowsOut = new AtomicLong();
+  private AtomicLong bytesOut = new AtomicLong();
+  private AtomicLong wireBytesOut = new AtomicLong();
+  private AtomicLong compressedResponses = new AtomicLong();
+
+  private DatasourceRegistry datasources;
+  private TransactionManager transactions;
+  private CursorManager cursors;
+  private ResultCache resultCache;
+  private QueryStats queryStats;
+
+  public Metrics(DatasourceRegistry datasources, TransactionManager transactions, CursorManager cursors,
+                 ResultCache resultCache, QueryStats queryStats) {
+    this.datasources = datasources;
+    this.transactions = transactions;
+    this.cursors = cursors;
+    this.resultCache = resultCache;
+    this.queryStats = queryStats;
+  }
+
+  /**
+   * The per-statement statistics, for the status servlet's report.
+   */
+  public QueryStats getQueryStats() {
+    return queryStats;
+  }
+
+  /**
+   * Adds one finished request.  <code>bytes</code> is what was written to
+   * the client, 0 for the statements inside a multi request since the
+   * multi request counts them.
+   */
+  public void record(Timings timings, long totalNanos, long bytes) {
+    String type = timings.type == null ? "invalid" : timings.type.toLowerCase();
+    if (!TYPES.contains(type)) type = "other";
+    TypeStats stats = byType.get(type);
+    if (stats == null) {
+      byType.putIfAbsent(type, new TypeStats());
+      stats = byType.get(type);
+    }
+
+    stats.total.record(totalNanos);
+    for (Phase phase : Phase.values()) {
+      long nanos = timings.nanos[phase.ordinal()];
+      if (nanos > 0) stats.phases[phase.ordinal()].record(nanos);
+    }
+    if (timings.errors != null) {
+      stats.errors.incrementAndGet();
+      for (String code : timings.errors) {
+        AtomicLong count = errors.get(code);
+        if (count == null) {
+          errors.putIfAbsent(code, new AtomicLong());
+          count = errors.get(code);
+        }
+        count.incrementAndGet();
+      }
+    }
+    rowsOut.addAndGet(timings.rows);
+    bytesOut.addAndGet(bytes);
+  }
+
+  /**
+   * Adds what one response took on the wire, which is less than the bytes
+   * written when it was compressed.
+   */
+  public void recordWire(long bytes, boolean compressed) {
+    wireBytesOut.addAndGet(bytes);
+    if (compressed) compressedResponses.incrementAndGet();
+  }
+
+  /**
+   * Returns every measurement by name, in a stable order.  Latencies are
+   * in microseconds.
+   */
+  public Map<String, Object> snapshot() {
+    Map<String, Object> values = new LinkedHashMap<String, Object>();
+    values.put("uptime-seconds", (System.currentTimeMillis() - startedAt) / 1000);
+    values.put("rows-out", rowsOut.get());
+    values.put("bytes-out", bytesOut.get());
+    values.put("bytes-out-wire", wireBytesOut.get());
+    values.put("responses-compressed", compressedResponses.get());
+
+    for (String type : new TreeSet<String>(byType.keySet())) {
+      TypeStats stats = byType.get(type);
+      String prefix = "request." + type + ".";
+      values.put(prefix + "count", stats.total.getCount());
+      values.put(prefix + "errors", stats.errors.get());
+      addHistogram(values, prefix + "total", stats.total);
+      for (Phase phase : Phase.values()) {
+        Histogram h = stats.phases[phase.ordinal()];
+        if (h.getCount() > 0) addHistogram(values, prefix + phase.label, h);
+      }
+    }
+
+    for (String code : new TreeSet<String>(errors.keySet())) {
+      values.put("errors." + code, errors.get(code).get());
+    }
+
+    for (DatasourceRegistry.Datasource ds : datasources.getDatasources()) {
+      String prefix = "statements." + ds.name + ".";
+      values.put(prefix + "running", ds.throttle.getRunningCount());
+      values.put(prefix + "queued", ds.throttle.getQueuedCount());
+      values.put(prefix + "max-concurrent", ds.throttle.getMaxConcurrent());
+      values.put(prefix + "rejected", ds.throttle.getRejectedCount());
+      values.put(prefix + "wait-timeouts", ds.throttle.getWaitTimeoutCount());
+      values.put(prefix + "cancelled", ds.throttle.getCancelledCount());
+
+      ConnectionPool pool = ds.getPoolIfStarted();
+      if (pool == null) continue;  // not used yet
+      prefix = "pool." + ds.name + ".";
+      values.put(prefix + "active", pool.getActiveCount());
+      values.put(prefix + "idle", pool.getIdleCount());
+      values.put(prefix + "waiting", pool.getWaitingCount());
+      values.put(prefix + "max-size", pool.getMaxSize());
+      values.put(prefix + "created", pool.getCreatedCount());
+      values.put(prefix + "destroyed", pool.getDestroyedCount());
+      values.put(prefix + "wait-timeouts", pool.getWaitTimeoutCount());
+      addHistogram(values, prefix + "wait", pool.getWaitTimes());
+      values.put(prefix + "statement-cache-hits", pool.getStatementCacheHits());
+      values.put(prefix + "statement-cache-misses", pool.getStatementCacheMisses());
+      values.put(prefix + "validation-failures", pool.getValidationFailureCount());
+      values.put(prefix + "breaker", pool.getBreaker().getState().label);
+      values.put(prefix + "breaker-trips", pool.getBreaker().getTripCount());
+      values.put(prefix + "breaker-rejected", pool.getBreaker().getRejectedCount());
+    }
+
+    values.put("transactions.open", transactions.getOpenCount());
+    values.put("cursors.open", cursors.getOpenCount());
+
+    values.put("result-cache.entries", resultCache.getEntryCount());
+    values.put("result-cache.bytes", resultCache.getBytes());
+    values.put("result-cache.hits", resultCache.getHits());
+    values.put("result-cache.misses", resultCache.getMisses());
+    values.put("result-cache.evictions", resultCache.getEvictions());
+    values.put("result-cache.invalidations", resultCache.getInvalidations());
+
+    values.put("queries.fingerprints", queryStats.getFingerprintCount());
+    values.put("queries.overflowed", queryStats.getOverflowCount());
+    values.put("queries.slow", queryStats.getSlowCount());
+    return values;
+  }
+
+  private static void addHistogram(Map<String, Object> values, String prefix, Histogram h) {
+    values.put(prefix + ".mean-us", h.getMeanMicros());
+    values.put(prefix + ".p50-us", h.getPercentileMicros(50));
+    values.put(prefix + ".p90-us", h.getPercentileMicros(90));
+    values.put(prefix + ".p99-us", h.getPercentileMicros(99));
+    values.put(prefix + ".max-us", h.getMaxMicros());
+  }
+
+  private static class TypeStats {
+    Histogram total = new Histogram();
+    Histogram[] phases = new Histogram[Phase.values().length];
+    AtomicLong errors = new AtomicLong();
+
+    TypeStats() {
+      for (int i = 0; i < phases.length; i++) {
+        phases[i] = new Histogram();
+      }
+    }
+  }
+
+  /**
+   * What one request spent its time on.  Only ever touched by the thread
+   * running the request, so it needs no synchronization.
+   */
+  static class Timings {
+    String type;
+    String datasource;  // once known, for the log
+    long started = System.nanoTime();
+    long[] nanos = new long[Phase.values().length];
+    long rows;
+    List<String> errors;  // SQLStates, or exception class names
+
+    void add(Phase phase, long nanos) {
+      this.nanos[phase.ordinal()] += nanos;
+    }
+
+    /**
+     * Whether any error was a connection exception (SQLState class 08),
+     * after which the connection can't be trusted.
+     */
+    boolean hasConnectionError() {
+      if (errors == null) return false;
+      for (String code : errors) {
+        if (code.startsWith("08")) return true;
+      }
+      return false;
+    }
+
+    void addError(Throwable t) {
+      if (errors == null) errors = new ArrayList<String>(2);
+      String state = t instanceof SQLException ? ((SQLException) t).getSQLState() : null;
+      errors.add(state != null ? state : t.getClass().getSimpleName());
+    }
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.util.*;
+import javax.management.*;
+
+/**
+ * Publishes {@link Metrics} over JMX, one read-only attribute per
+ * measurement.  The set of attributes grows as request types and
+ * datasources are first used, so it's a DynamicMBean rather than a
+ * standard one with a getter per value.
+ */
+class MetricsMBean implements DynamicMBean {
+
+  private Metrics metrics;
+
+  MetricsMBean(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public Object getAttribute(String name) throws AttributeNotFoundException {
+    Object value = metrics.snapshot().get(name);
+    if (value == null) {
+      throw new AttributeNotFoundException(name);
+    }
+    return value;
+  }
+
+  public AttributeList getAttributes(String[] names) {
+    Map<String, Object> snapshot = metrics.snapshot();
+    AttributeList list = new AttributeList();
+    for (String name : names) {
+      if (snapshot.containsKey(name)) {
+        list.add(new Attribute(name, snapshot.get(name)));
+      }
+    }
+    return list;
+  }
+
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("MLSQL metrics are read-only");
+  }
+
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  public Object invoke(String action, Object[] params, String[] signature) throws MBeanException {
+    throw new MBeanException(new UnsupportedOperationException(action));
+  }
+
+  public MBeanInfo getMBeanInfo() {
+    Map<String, Object> snapshot = metrics.snapshot();
+    MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+    int i = 0;
+    for (Map.Entry<String, Object> entry : snapshot.entrySet()) {
+      attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+              entry.getKey(), true, false, false);
+    }
+    return new MBeanInfo(getClass().getName(), "MLSQL request, pool and cache metrics",
+            attributes, null, null, null);
+  }
+}
@@ -0,0 +1,314 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics per statement, so the expensive ones can be found among the
+ * hundreds of distinct queries the XQuery side sends.  Statements are
+ * grouped by fingerprint: the SQL with its literals replaced by "?",
+ * comments dropped, whitespace collapsed and keywords lowercased.  So
+ * "SELECT * FROM t WHERE id = 42" and "select * from t where id=7" count
+ * as the same statement, and so do IN lists of any length.
+ *
+ * Each fingerprint, per datasource, keeps a call count and latency
+ * {@link Histogram}, and the rows, bytes and errors it produced, all in
+ * atomics so recording never locks.  The table holds at most
+ * <code>query-stats-max</code> fingerprints; once it's full, statements
+ * not already in it are counted together under "(other)" rather than
+ * pushing out what's been gathered.
+ *
+ * A statement taking longer than <code>slow-query-threshold</code> ms (0,
+ * the default, for never) is logged with its SQL and bound parameters.
+ *
+ * Settings, from the servlet init-params:
+ * <ul>
+ * <li><code>query-stats-max</code> - fingerprints kept, 0 turns the statistics off (default 500)
+ * <li><code>slow-query-threshold</code> - ms after which a statement is logged as slow (default 0)
+ * </ul>
+ */
+class QueryStats {
+
+  public static final String MAX = "query-stats-max";
+  public static final String SLOW_THRESHOLD = "slow-query-threshold";
+
+  static final String OTHER = "(other)";
+
+  /** What {@link #top} can sort by, biggest first */
+  static final List<String> SORTS = Arrays.asList("total", "calls", "mean", "p99", "max", "rows", "bytes", "errors");
+
+  private static final int MAX_FINGERPRINT = 2000;  // chars kept of a long statement
+  private static final int MAX_LOGGED_VALUE = 200;  // chars logged of a long parameter value
+  private static final String OPERATORS = "<>=!|&+-*/%^~";
+
+  private int max;
+  private long slowNanos;
+  private ConcurrentHashMap<String, Stats> table = new ConcurrentHashMap<String, Stats>();
+  private AtomicLong overflowed = new AtomicLong();
+  private AtomicLong slow = new AtomicLong();
+
+  public QueryStats(Properties settings) {
+    max = Math.max(0, ConnectionPool.getInt(settings, MAX, 500));
+    slowNanos = Math.max(0, ConnectionPool.getInt(settings, SLOW_THRESHOLD, 0)) * 1000000L;
+  }
+
+  /**
+   * Adds one execution of a statement, and logs it if it was slow.
+   *
+   * @param nanos time from binding the parameters to writing the last row
+   */
+  public void record(String datasource, SqlRequest request, long nanos, long rows, long bytes, boolean failed) {
+    if (max > 0) {
+      String fingerprint = fingerprint(request.query);
+      String key = datasource + '\n' + fingerprint;
+      Stats stats = table.get(key);
+      if (stats == null) {
+        if (table.size() >= max) {
+          overflowed.incrementAndGet();
+          key = datasource + '\n' + OTHER;
+          fingerprint = OTHER;
+          stats = table.get(key);
+        }
+        if (stats == null) {
+          // "(other)" may go one over the limit, so it always has a place
+          table.putIfAbsent(key, new Stats(datasource, fingerprint));
+          stats = table.get(key);
+        }
+      }
+      stats.latency.record(nanos);
+      stats.rows.addAndGet(rows);
+      stats.bytes.addAndGet(bytes);
+      if (failed) stats.errors.incrementAndGet();
+    }
+
+    if (slowNanos > 0 && nanos >= slowNanos) {
+      slow.incrementAndGet();
+      Log.log(Log.Level.WARN, "Slow statement", null, "elapsed-ms", Long.toString(nanos / 1000000),
+              "datasource", datasource, "type", request.type, "rows", Long.toString(rows),
+              "failed", failed ? "true" : null, "sql", request.query, "parameters", describeParameters(request));
+    }
+  }
+
+  public int getFingerprintCount() {
+    return table.size();
+  }
+
+  public long getOverflowCount() {
+    return overflowed.get();
+  }
+
+  public long getSlowCount() {
+    return slow.get();
+  }
+
+  /**
+   * Returns the <code>n</code> statements with the most of
+   * <code>sort</code>, one of {@link #SORTS}, as name/value maps in a
+   * stable column order.  Latencies are in microseconds.
+   */
+  public List<Map<String, Object>> top(String sort, int n) {
+    final int by = Math.max(0, SORTS.indexOf(sort));
+    List<Stats> all = new ArrayList<Stats>(table.values());
+    final Map<Stats, Long> keys = new HashMap<Stats, Long>();
+    for (Stats stats : all) {
+      keys.put(stats, stats.sortKey(by));  // read once, they may change while sorting
+    }
+    Collections.sort(all, new Comparator<Stats>() {
+      public int compare(Stats a, Stats b) {
+        long ka = keys.get(a), kb = keys.get(b);
+        return ka < kb ? 1 : ka > kb ? -1 : a.fingerprint.compareTo(b.fingerprint);
+      }
+    });
+
+    List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+    for (Stats stats : all.subList(0, Math.min(n, all.size()))) {
+      Map<String, Object> row = new LinkedHashMap<String, Object>();
+      row.put("calls", stats.latency.getCount());
+      row.put("total-ms", stats.latency.getTotalMicros() / 1000);
+      row.put("mean-us", stats.latency.getMeanMicros());
+      row.put("p50-us", stats.latency.getPercentileMicros(50));
+      row.put("p90-us", stats.latency.getPercentileMicros(90));
+      row.put("p99-us", stats.latency.getPercentileMicros(99));
+      row.put("max-us", stats.latency.getMaxMicros());
+      row.put("rows", stats.rows.get());
+      row.put("bytes", stats.bytes.get());
+      row.put("errors", stats.errors.get());
+      row.put("datasource", stats.datasource);
+      row.put("fingerprint", stats.fingerprint);
+      rows.add(row);
+    }
+    return rows;
+  }
+
+  /**
+   * Normalizes a statement so that runs differing only in their literals,
+   * spacing, comments or keyword case look the same.  It's read as words,
+   * literals and operators, which are written back with single spaces
+   * between them (none inside parentheses or around dots and commas).
+   * Quoted identifiers keep their case.
+   */
+  static String fingerprint(String sql) {
+    StringBuffer buf = new StringBuffer(Math.min(sql.length(), MAX_FINGERPRINT));
+    int length = sql.length();
+    int i = 0;
+    while (i < length && buf.length() < MAX_FINGERPRINT) {
+      char c = sql.charAt(i);
+      int end;
+      if (Character.isWhitespace(c)) {
+        i++;
+        continue;
+      }
+      else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+        end = sql.indexOf('\n', i);
+        i = end < 0 ? length : end;
+        continue;
+      }
+      else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+        end = sql.indexOf("*/", i + 2);
+        i = end < 0 ? length : end + 2;
+        continue;
+      }
+      else if (c == '\'') {
+        // '' inside a string is a quote, not its end
+        end = i + 1;
+        while (end < length && (sql.charAt(end) != '\'' || (end + 1 < length && sql.charAt(end + 1) == '\''))) {
+          end += sql.charAt(end) == '\'' ? 2 : 1;
+        }
+        i = end + 1;
+        addPlaceholder(buf);
+      }
+      else if (Character.isDigit(c) || (c == '.' && i + 1 < length && Character.isDigit(sql.charAt(i + 1)))) {
+        end = i + 1;
+        while (end < length && (Character.isLetterOrDigit(sql.charAt(end)) || sql.charAt(end) == '.')) end++;
+        i = end;
+        addPlaceholder(buf);
+      }
+      else if (c == '?') {
+        i++;
+        addPlaceholder(buf);
+      }
+      else if (c == '"' || c == '`' || c == '[') {
+        end = sql.indexOf(c == '[' ? ']' : c, i + 1);
+        end = end < 0 ? length : end + 1;
+        addToken(buf, sql.substring(i, end));
+        i = end;
+      }
+      else if (isWordChar(c)) {
+        end = i + 1;
+        while (end < length && isWordChar(sql.charAt(end))) end++;
+        addToken(buf, sql.substring(i, end).toLowerCase());
+        i = end;
+      }
+      else {
+        addToken(buf, String.valueOf(c));
+        i++;
+      }
+    }
+    return buf.toString();
+  }
+
+  private static boolean isWordChar(char c) {
+    return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '#' || c == '@' || c == ':';
+  }
+
+  private static void addToken(StringBuffer buf, String token) {
+    if (buf.length() > 0) {
+      char last = buf.charAt(buf.length() - 1);
+      char first = token.charAt(0);
+      boolean operators = OPERATORS.indexOf(last) >= 0 && OPERATORS.indexOf(first) >= 0;  // like >= or ||
+      if (!operators && last != '(' && last != '.' && first != ')' && first != ',' && first != '.') {
+        buf.append(' ');
+      }
+    }
+    buf.append(token);
+  }
+
+  /**
+   * Adds a "?", or nothing if it would follow another "?" in a list, so
+   * IN lists of any length come out the same.
+   */
+  private static void addPlaceholder(StringBuffer buf) {
+    int end = buf.length();
+    if (end >= 2 && buf.charAt(end - 1) == ',' && buf.charAt(end - 2) == '?') {
+      buf.setLength(end - 1);
+      return;
+    }
+    addToken(buf, "?");
+  }
+
+  /**
+   * The bound parameters as "type:value" items, or for a batch the number
+   * of parameter sets and the first of them.
+   */
+  private static String describeParameters(SqlRequest request) {
+    SqlRequest.Parameter[] params = request.parameters;
+    String prefix = "";
+    if (request.type.equalsIgnoreCase("batch") && request.parameterSets.size() > 0) {
+      params = request.parameterSets.get(0);
+      prefix = request.parameterSets.size() + " sets, first ";
+    }
+    if (params == null || params.length == 0) {
+      return prefix.length() > 0 ? prefix + "[]" : null;
+    }
+    StringBuffer buf = new StringBuffer(prefix).append('[');
+    for (int i = 0; i < params.length; i++) {
+      SqlRequest.Parameter param = params[i];
+      if (i > 0) buf.append(", ");
+      buf.append(param.type).append(':');
+      if (param.out) buf.append("out");
+      else if (param.isNull || param.value == null) buf.append("null");
+      else if (param.value.length() > MAX_LOGGED_VALUE) buf.append(param.value, 0, MAX_LOGGED_VALUE).append("...");
+      else buf.append(param.value);
+    }
+    return buf.append(']').toString();
+  }
+
+  private static class Stats {
+    String datasource;
+    String fingerprint;
+    Histogram latency = new Histogram();
+    AtomicLong rows = new AtomicLong();
+    AtomicLong bytes = new AtomicLong();
+    AtomicLong errors = new AtomicLong();
+
+    Stats(String datasource, String fingerprint) {
+      this.datasource = datasource;
+      this.fingerprint = fingerprint;
+    }
+
+    long sortKey(int by) {
+      switch (by) {
+        case 1: return latency.getCount();
+        case 2: return latency.getMeanMicros();
+        case 3: return latency.getPercentileMicros(99);
+        case 4: return latency.getMaxMicros();
+        case 5: return rows.get();
+        case 6: return bytes.get();
+        case 7: return errors.get();
+        default: return latency.getTotalMicros();
+      }
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.io.*;
+import java.util.*;
+import javax.xml.stream.*;
+
+/**
+ * Reads a <code>sql:request</code> in a single forward pass with a StAX
+ * pull parser, straight into a {@link SqlRequest}.  The request format is
+ * small and fixed, so there's no need to build a JDOM tree and query it
+ * with XPath.  Elements we don't recognize are skipped.
+ */
+class RequestDecoder {
+
+  private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+  static {
+    // Requests never need a DTD, and resolving one is an easy way to abuse us
+    FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+  }
+
+  public static SqlRequest decode(InputStream in) throws XMLStreamException {
+    return decode(FACTORY.createXMLStreamReader(in));
+  }
+
+  public static SqlRequest decode(Reader in) throws XMLStreamException {
+    return decode(FACTORY.createXMLStreamReader(in));
+  }
+
+  private static SqlRequest decode(XMLStreamReader reader) throws XMLStreamException {
+    try {
+      reader.nextTag();
+      return readRequest(reader);
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Reads from a sql:request start tag through its end tag.
+   */
+  private static SqlRequest readRequest(XMLStreamReader reader) throws XMLStreamException {
+    if (!isSql(reader, "request")) {
+      throw new XMLStreamException("Expected a sql:request element but found " + reader.getName(), reader.getLocation());
+    }
+    SqlRequest request = new SqlRequest();
+    List<SqlRequest.Parameter> all = new ArrayList<SqlRequest.Parameter>();
+
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if (isSql(reader, "type")) {
+        request.type = reader.getElementText().trim();
+      }
+      else if (isSql(reader, "query")) {
+        request.query = reader.getElementText().trim();
+      }
+      else if (isSql(reader, "execute-options")) {
+        readOptions(reader, request, all);
+      }
+      else if (isSql(reader, "statements")) {
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+          request.statements.add(readRequest(reader));
+        }
+      }
+      else {
+        skip(reader);
+      }
+    }
+    request.parameters = all.toArray(SqlRequest.NO_PARAMETERS);
+    return request;
+  }
+
+  private static void readOptions(XMLStreamReader reader, SqlRequest request, List<SqlRequest.Parameter> all)
+          throws XMLStreamException {
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if (isSql(reader, "parameters")) {
+        List<SqlRequest.Parameter> set = new ArrayList<SqlRequest.Parameter>();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+          if (isSql(reader, "parameter")) {
+            String type = reader.getAttributeValue(null, "type");
+            boolean isNull = "true".equalsIgnoreCase(reader.getAttributeValue(null, "null"));
+            boolean out = "true".equalsIgnoreCase(reader.getAttributeValue(null, "out"));
+            set.add(new SqlRequest.Parameter(type, reader.getElementText(), isNull, out));
+          }
+          else {
+            skip(reader);
+          }
+        }
+        request.parameterSets.add(set.toArray(SqlRequest.NO_PARAMETERS));
+        all.addAll(set);
+      }
+      else if (ResultWriter.SQL_NAMESPACE.equals(reader.getNamespaceURI())) {
+        request.options.put(reader.getLocalName(), readText(reader));
+      }
+      else {
+        skip(reader);
+      }
+    }
+  }
+
+  /**
+   * Returns the trimmed text content of a simple option element, ignoring
+   * any markup inside it.
+   */
+  private static String readText(XMLStreamReader reader) throws XMLStreamException {
+    StringBuffer buf = new StringBuffer();
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) depth++;
+      else if (event == XMLStreamConstants.END_ELEMENT) depth--;
+      else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+        buf.append(reader.getText());
+      }
+    }
+    return buf.toString().trim();
+  }
+
+  private static void skip(XMLStreamReader reader) throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) depth++;
+      else if (event == XMLStreamConstants.END_ELEMENT) depth--;
+    }
+  }
+
+  private static boolean isSql(XMLStreamReader reader, String localName) {
+    return localName.equals(reader.getLocalName()) &&
+            ResultWriter.SQL_NAMESPACE.equals(reader.getNamespaceURI());
+  }
+}
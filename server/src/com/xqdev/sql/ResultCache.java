@@ -0,0 +1,279 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the serialized rows of recent selects, so identical lookups don't
+ * go back to the database.  Caching is opt-in per request: a select with a
+ * <code>cache-ttl</code> option (in ms) is answered from the cache if the
+ * same datasource, SQL and parameter values were seen less than that long
+ * ago, and otherwise stored for that long.
+ *
+ * The cache holds at most <code>result-cache-max-bytes</code> (default
+ * 10 MB, 0 turns caching off) of row data, evicting the least recently
+ * used entries to stay under it.  A result bigger than a quarter of that
+ * isn't cached at all.
+ *
+ * The database can't tell us when cached rows go stale, so selects can
+ * name the tables they read with <code>cache-tags</code>, and any request
+ * carrying an <code>invalidate</code> option drops every entry tagged with
+ * one of the listed names.  Updates made in a transaction should
+ * invalidate once it's committed (the option works on a commit request
+ * too), otherwise a select can cache the old rows again in between.  A
+ * select still running when an invalidation arrives may have read the old
+ * rows, so each invalidation starts a new generation and rows read in an
+ * earlier one aren't stored under the invalidated tags.
+ */
+class ResultCache {
+
+  public static final String MAX_BYTES = "result-cache-max-bytes";
+
+  private static final int MAX_TRACKED_TAGS = 10000;
+
+  private long maxBytes;
+  private long maxEntryBytes;
+  private long bytes = 0;
+  private LinkedHashMap<String, Cached> entries = new LinkedHashMap<String, Cached>(64, 0.75f, true);
+  private Map<String, Set<String>> keysByTag = new HashMap<String, Set<String>>();
+  private long generation = 0;
+  // The generation in which each tag was last invalidated, and in which
+  // everything was
+  private Map<String, Long> invalidatedIn = new HashMap<String, Long>();
+  private long clearedIn = 0;
+  private ScheduledFuture<?> sweeper;
+
+  private AtomicLong hits = new AtomicLong();
+  private AtomicLong misses = new AtomicLong();
+  private AtomicLong evictions = new AtomicLong();
+  private AtomicLong invalidations = new AtomicLong();
+
+  public ResultCache(long maxBytes, Housekeeper housekeeper) {
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = maxBytes / 4;
+    if (housekeeper != null && maxBytes > 0) {
+      // Expired entries are dropped when looked up, this frees the ones nobody asks for again
+      sweeper = housekeeper.schedule(new Runnable() {
+        public void run() {
+          removeExpired();
+        }
+      }, 60000);
+    }
+  }
+
+  public boolean isEnabled() {
+    return maxBytes > 0;
+  }
+
+  /**
+   * Returns the most a single result may take up and still be cached.
+   */
+  public long getMaxEntryBytes() {
+    return maxEntryBytes;
+  }
+
+  /**
+   * Builds the cache key for a select: everything that decides which rows
+   * come back and how they're written, including the response format,
+   * since what's cached is the written bytes.
+   */
+  public static String keyFor(String datasource, SqlRequest request, String format) {
+    StringBuffer key = new StringBuffer(request.query.length() + 64);
+    key.append(datasource).append('\u0000');
+    key.append(format).append('\u0000');
+    key.append(request.query).append('\u0000');
+    key.append(request.getOption("typed")).append('\u0000');
+    key.append(request.getOption("max-rows")).append('\u0000');
+    key.append(request.getOption("max-field-size"));
+    for (SqlRequest.Parameter param : request.parameters) {
+      key.append('\u0000').append(param.type).append(':');
+      if (param.isNull) key.append("null");
+      else if (param.value != null) key.append(param.value.length()).append(':').append(param.value);
+    }
+    return key.toString();
+  }
+
+  /**
+   * Returns the current generation.  Read it before looking a select up,
+   * and pass it to {@link #put} with the rows the select then reads.
+   */
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Returns the cached rows for the key, or null if there are none or
+   * they've expired.
+   */
+  public byte[] get(String key) {
+    synchronized (this) {
+      Cached entry = entries.get(key);
+      if (entry != null && entry.expires > System.currentTimeMillis()) {
+        hits.incrementAndGet();
+        return entry.body;
+      }
+      if (entry != null) {
+        remove(key);
+      }
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Stores rows read by a select that was looked up in the given
+   * generation.  They're dropped if one of their tags has been invalidated
+   * since, as the select may have read rows the invalidating write changed.
+   */
+  public synchronized void put(String key, byte[] body, long ttl, String tags, long readIn) {
+    if (body.length > maxEntryBytes || ttl <= 0 || clearedIn > readIn) {
+      return;
+    }
+    String[] tagList = splitTags(tags);
+    for (String tag : tagList) {
+      Long invalidated = invalidatedIn.get(tag);
+      if (invalidated != null && invalidated > readIn) {
+        return;
+      }
+    }
+    remove(key);
+    Cached entry = new Cached(body, System.currentTimeMillis() + ttl, tagList);
+    entries.put(key, entry);
+    bytes += body.length;
+    for (String tag : entry.tags) {
+      Set<String> keys = keysByTag.get(tag);
+      if (keys == null) {
+        keys = new HashSet<String>();
+        keysByTag.put(tag, keys);
+      }
+      keys.add(key);
+    }
+
+    // Least recently used first
+    Iterator<Map.Entry<String, Cached>> lru = entries.entrySet().iterator();
+    while (bytes > maxBytes && lru.hasNext()) {
+      Map.Entry<String, Cached> oldest = lru.next();
+      lru.remove();
+      forget(oldest.getKey(), oldest.getValue());
+      evictions.incrementAndGet();
+    }
+  }
+
+  /**
+   * Drops every entry tagged with any of the given names (separated by
+   * spaces or commas).
+   */
+  public synchronized void invalidate(String tags) {
+    generation++;
+    if (invalidatedIn.size() >= MAX_TRACKED_TAGS) {
+      // Too many names to remember, act as though all were invalidated now
+      invalidatedIn.clear();
+      clearedIn = generation;
+    }
+    for (String tag : splitTags(tags)) {
+      invalidatedIn.put(tag, generation);
+      Set<String> keys = keysByTag.remove(tag);
+      if (keys == null) continue;
+      for (String key : new ArrayList<String>(keys)) {
+        if (remove(key)) {
+          invalidations.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    keysByTag.clear();
+    bytes = 0;
+    generation++;
+    invalidatedIn.clear();
+    clearedIn = generation;
+  }
+
+  public void close() {
+    if (sweeper != null) sweeper.cancel(false);
+    clear();
+  }
+
+  public synchronized int getEntryCount() { return entries.size(); }
+  public synchronized long getBytes() { return bytes; }
+  public long getMaxBytes() { return maxBytes; }
+  public long getHits() { return hits.get(); }
+  public long getMisses() { return misses.get(); }
+  public long getEvictions() { return evictions.get(); }
+  public long getInvalidations() { return invalidations.get(); }
+
+  private synchronized void removeExpired() {
+    long now = System.currentTimeMillis();
+    // Iterating doesn't count as access, unlike get(), so the LRU order stays put
+    Iterator<Map.Entry<String, Cached>> i = entries.entrySet().iterator();
+    while (i.hasNext()) {
+      Map.Entry<String, Cached> entry = i.next();
+      if (entry.getValue().expires <= now) {
+        i.remove();
+        forget(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  private boolean remove(String key) {
+    Cached entry = entries.remove(key);
+    if (entry == null) return false;
+    forget(key, entry);
+    return true;
+  }
+
+  /**
+   * Undoes the bookkeeping for an entry already taken out of the map.
+   */
+  private void forget(String key, Cached entry) {
+    bytes -= entry.body.length;
+    for (String tag : entry.tags) {
+      Set<String> keys = keysByTag.get(tag);
+      if (keys != null) {
+        keys.remove(key);
+        if (keys.isEmpty()) keysByTag.remove(tag);
+      }
+    }
+  }
+
+  private static String[] splitTags(String tags) {
+    tags = tags == null ? "" : tags.trim().toLowerCase();
+    return tags.length() == 0 ? new String[0] : tags.split("[\\s,]+");
+  }
+
+  private static class Cached {
+    byte[] body;
+    long expires;
+    String[] tags;
+
+    Cached(byte[] body, long expires, String[] tags) {
+      this.body = body;
+      this.expires = expires;
+      this.tags = tags;
+    }
+  }
+}
@@ -0,0 +1,649 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.Arrays;
+import javax.xml.stream.XMLStreamException;
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Writes the response straight to an output stream as the JDBC calls
+ * progress, so memory use doesn't grow with the number of rows returned.
+ *
+ * A response can be written in any of three formats, chosen per request
+ * by the <code>format</code> option or the Accept header (see
+ * {@link #formatFor}):
+ * <ul>
+ * <li>"xml" - the <code>sql:result</code> document, one element per value
+ *     (the default, see {@link XmlResultWriter})
+ * <li>"json" - column names once, then the rows as arrays (see
+ *     {@link JsonResultWriter})
+ * <li>"delimited" - tab separated lines, which the client library turns
+ *     back into a <code>sql:result</code> (see {@link DelimitedResultWriter})
+ * </ul>
+ * This class does the part they share: reading each column with the getter
+ * suited to its type (see {@link Column}), worked out once per result set
+ * rather than per cell, timing the fetching and serializing, and keeping
+ * count.  BLOB and LONGVARBINARY values are Base64 encoded and CLOB and
+ * LONGVARCHAR values copied a buffer at a time straight from the driver's
+ * stream, so a large LOB never has to be held in memory whole.  The
+ * subclasses write the values.
+ *
+ * Requests made up of several statements (scripts) write one nested
+ * result per statement into the body of the outer one, bracketed by
+ * {@link #startResult} and {@link #endResult}, or written separately (in
+ * the same format) and copied in whole with {@link #addFragment}.
+ *
+ * Whatever the format, failing to write to the output stream is reported
+ * as an <code>XMLStreamException</code>, which callers take to mean the
+ * client has gone away.
+ */
+abstract class ResultWriter {
+
+  static final String SQL_NAMESPACE = "http://xqdev.com/sql";
+  static final String SQL_PREFIX = "sql";
+
+  static final String XML = "xml";
+  static final String JSON = "json";
+  static final String DELIMITED = "delimited";
+
+  // A multiple of 3, so each chunk encodes to Base64 without padding
+  private static final int BINARY_CHUNK_SIZE = 3 * 16 * 1024;
+  private static final int CHARACTER_CHUNK_SIZE = 16 * 1024;
+
+  protected final CaptureStream out;
+  private int exceptionCount = 0;
+
+  /** Where this request's time went, for {@link Metrics} */
+  final Metrics.Timings timings = new Metrics.Timings();
+
+  protected ResultWriter(OutputStream out) {
+    this.out = new CaptureStream(out);
+  }
+
+  /**
+   * Returns a writer for the named format.
+   */
+  static ResultWriter create(String format, OutputStream out) throws XMLStreamException {
+    if (JSON.equals(format)) return new JsonResultWriter(out);
+    if (DELIMITED.equals(format)) return new DelimitedResultWriter(out);
+    return new XmlResultWriter(out);
+  }
+
+  /**
+   * Picks the response format: the request's <code>format</code> option if
+   * it has one, else whatever the Accept header asks for first, else XML.
+   *
+   * @throws IllegalArgumentException if the option names no known format
+   */
+  static String formatFor(String option, String accept) {
+    if (option != null && option.trim().length() > 0) {
+      String format = option.trim().toLowerCase();
+      if (format.equals(XML) || format.equals(JSON) || format.equals(DELIMITED)) {
+        return format;
+      }
+      throw new IllegalArgumentException("Unknown format '" + option + "', use " + XML + ", " + JSON + " or " +
+              DELIMITED);
+    }
+    if (accept != null) {
+      for (String range : accept.split(",")) {
+        String type = range.split(";")[0].trim().toLowerCase();
+        if (type.equals(JsonResultWriter.MEDIA_TYPE)) return JSON;
+        if (type.equals(DelimitedResultWriter.MEDIA_TYPE)) return DELIMITED;
+        if (type.equals("text/xml") || type.equals("application/xml")) return XML;
+      }
+    }
+    return XML;
+  }
+
+  /** The format's name, as given to {@link #create} */
+  public abstract String getFormat();
+
+  public abstract String getContentType();
+
+  public abstract void startDocument() throws XMLStreamException;
+
+  /**
+   * Starts the result without any document prologue, for a result that
+   * will be copied into another with {@link #addFragment}.  Finish it
+   * with {@link #endDocument}.
+   */
+  public abstract void startFragment() throws XMLStreamException;
+
+  public abstract void endDocument() throws XMLStreamException;
+
+  /**
+   * Opens a nested result in the body of the current one.
+   */
+  public abstract void startResult() throws XMLStreamException;
+
+  /**
+   * Closes the nested result opened by the matching {@link #startResult}.
+   */
+  public abstract void endResult() throws XMLStreamException;
+
+  /**
+   * Copies a complete result, written separately by another writer of
+   * the same format, into the body of this one as a nested result.
+   */
+  public void addFragment(ByteArrayOutputStream fragment) throws IOException, XMLStreamException {
+    startRaw(true);
+    fragment.writeTo(out);
+    endRaw(true);
+  }
+
+  /**
+   * Starts keeping a copy of the body written from here on, up to
+   * <code>limit</code> bytes, for the result cache.
+   */
+  public void startCapture(long limit) throws XMLStreamException {
+    startRaw(false);
+    out.startCapture(limit);
+  }
+
+  /**
+   * Returns the bytes written since {@link #startCapture}, or null if
+   * there were more than the limit.
+   */
+  public byte[] endCapture() throws XMLStreamException {
+    flush();
+    return out.endCapture();
+  }
+
+  /**
+   * Writes rows captured earlier by {@link #startCapture}, by a writer
+   * of the same format, copied as is.
+   */
+  public void addCaptured(byte[] body) throws IOException, XMLStreamException {
+    startRaw(false);
+    out.write(body);
+    endRaw(false);
+  }
+
+  /**
+   * Returns how many exceptions have been reported so far, so callers can
+   * tell whether a step they just ran failed.
+   */
+  public int getExceptionCount() {
+    return exceptionCount;
+  }
+
+  /**
+   * Returns the number of bytes that have reached the output stream, all
+   * of them once {@link #endDocument} has flushed the writer.
+   */
+  public long getBytesWritten() {
+    return out.count;
+  }
+
+  public void addTransaction(String id) throws XMLStreamException {
+    addMeta("transaction", id);
+  }
+
+  public void addCursor(String id) throws XMLStreamException {
+    addMeta("cursor", id);
+  }
+
+  public void addUpdateCount(int count) throws XMLStreamException {
+    addMeta("rows-affected", count);
+  }
+
+  public void addGeneratedKeys(ResultSet keys) throws SQLException, XMLStreamException {
+    while (keys.next()) {  // should only be one
+      addMeta("generated-key", "" + keys.getString(1));
+    }
+  }
+
+  public abstract void addOutParam(int index, String value) throws XMLStreamException;
+
+  public void addResultSet(ResultSet rs) throws SQLException, IOException, XMLStreamException {
+    addResultSet(rs, false);
+  }
+
+  /**
+   * Writes the rows of a result set.  With <code>typed</code> each value
+   * is written in its XML Schema lexical form and marked with its
+   * XML Schema type, so the client can cast it without guessing at the
+   * database's formatting.
+   */
+  public void addResultSet(ResultSet rs, boolean typed) throws SQLException, IOException, XMLStreamException {
+    addRows(rs, Column.describe(rs.getMetaData()), typed, Integer.MAX_VALUE, false);
+  }
+
+  /**
+   * Writes up to <code>limit</code> rows of a result set, for reading a
+   * cursor a page at a time.  <code>onRow</code> says the result set is
+   * already positioned on the first row to write.  Returns whether rows
+   * remain, in which case the result set is left positioned on the next
+   * one.
+   */
+  public boolean addRows(ResultSet rs, Column[] columns, boolean typed, int limit, boolean onRow)
+          throws SQLException, IOException, XMLStreamException {
+    startRows(columns, typed);
+
+    // Time spent in rs.next() counts as fetching, the rest as serializing
+    long fetchNanos = 0, serializeNanos = 0;
+    int written = 0;
+    long start = System.nanoTime();
+    boolean more = onRow || rs.next();
+    long fetched = System.nanoTime();
+    fetchNanos += fetched - start;
+    try {
+      while (more && written < limit) {
+        startRow();
+        for (int i = 0; i < columns.length; i++) {
+          addColumn(rs, columns[i], typed);
+        }
+        endRow();
+        written++;
+        long serialized = System.nanoTime();
+        serializeNanos += serialized - fetched;
+        more = rs.next();
+        fetched = System.nanoTime();
+        fetchNanos += fetched - serialized;
+      }
+      // Not reached if a row fails part way, the writer tidies up after that
+      endRows();
+    }
+    finally {
+      timings.add(Metrics.Phase.FETCH, fetchNanos);
+      timings.add(Metrics.Phase.SERIALIZE, serializeNanos);
+      timings.rows += written;
+    }
+    return more;
+  }
+
+  private void addColumn(ResultSet rs, Column column, boolean typed) throws SQLException, IOException, XMLStreamException {
+    int i = column.index;
+    startColumn(column, typed);
+
+    switch (column.kind) {
+      case LONG: {
+        long value = rs.getLong(i);
+        if (rs.wasNull()) writeNull();
+        else writeLiteral(Long.toString(value));
+        break;
+      }
+      case DECIMAL: {
+        BigDecimal value = rs.getBigDecimal(i);
+        if (value == null) writeNull();
+        else writeLiteral(value.toPlainString());
+        break;
+      }
+      case DOUBLE: {
+        double value = rs.getDouble(i);
+        if (rs.wasNull()) writeNull();
+        else if (Double.isNaN(value) || Double.isInfinite(value)) writeString(typed ? XsdFormat.formatDouble(value) : Double.toString(value));
+        else writeLiteral(Double.toString(value));
+        break;
+      }
+      case REAL: {
+        float value = rs.getFloat(i);
+        if (rs.wasNull()) writeNull();
+        else if (Float.isNaN(value) || Float.isInfinite(value)) writeString(typed ? XsdFormat.formatFloat(value) : Float.toString(value));
+        else writeLiteral(Float.toString(value));
+        break;
+      }
+      case DATE: {
+        if (!typed) {
+          writeString(rs, i);
+          break;
+        }
+        Date value = rs.getDate(i);
+        if (value == null) writeNull();
+        else writeString(XsdFormat.formatDate(value));
+        break;
+      }
+      case TIME: {
+        if (!typed) {
+          writeString(rs, i);
+          break;
+        }
+        Time value = rs.getTime(i);
+        if (value == null) writeNull();
+        else writeString(XsdFormat.formatTime(value));
+        break;
+      }
+      case TIMESTAMP: {
+        if (!typed) {
+          writeString(rs, i);
+          break;
+        }
+        Timestamp value = rs.getTimestamp(i);
+        if (value == null) writeNull();
+        else writeString(XsdFormat.formatDateTime(value));
+        break;
+      }
+      case BOOLEAN: {
+        boolean value = rs.getBoolean(i);
+        if (rs.wasNull()) writeNull();
+        else writeLiteral(value ? "true" : "false");
+        break;
+      }
+      case BLOB: {
+        // Place BLOBs into the result as Base64 encoded text
+        Blob value = rs.getBlob(i);
+        if (value == null) {
+          writeNull();
+        }
+        else {
+          writeBase64(value.getBinaryStream());
+          free(value);
+        }
+        break;
+      }
+      case BINARY_STREAM: {
+        InputStream value = rs.getBinaryStream(i);
+        if (value == null) writeNull();
+        else writeBase64(value);
+        break;
+      }
+      case CHARACTER_STREAM: {
+        Reader value = rs.getCharacterStream(i);
+        if (value == null) writeNull();
+        else writeCharacters(value);
+        break;
+      }
+      case UNKNOWN: {
+        rs.getString(i);
+        writeUnknown(rs.wasNull());
+        break;
+      }
+      default: {
+        writeString(rs, i);
+        break;
+      }
+    }
+    endColumn();
+  }
+
+  private void writeString(ResultSet rs, int i) throws SQLException, XMLStreamException {
+    String value = rs.getString(i);
+    if (value == null) writeNull();
+    else writeString(value);
+  }
+
+  public void addExceptions(Throwable t) throws XMLStreamException {
+    if (t == null) return;
+
+    exceptionCount++;
+    timings.addError(t);
+    logException(t);  // the stack trace shows the causes too
+    startProblems("exceptions");
+    do {
+      addProblem("exception", t.getClass().getName(), t.getMessage(), false, null, 0);
+      t = t.getCause();
+    } while (t != null);
+    endProblems();
+  }
+
+  public void addExceptions(SQLException e) throws XMLStreamException {
+    if (e == null) return;
+
+    exceptionCount++;
+    timings.addError(e);
+    startProblems("exceptions");
+    do {
+      addProblem("exception", e.getClass().getName(), e.getMessage(), true, e.getSQLState(), e.getErrorCode());
+      e = e.getNextException();
+    } while (e != null);
+    endProblems();
+  }
+
+  /**
+   * Logs a failure of this response's request, with its type, datasource,
+   * SQLState and how long it had been running.
+   */
+  public void logException(Throwable t) {
+    String state = t instanceof SQLException ? ((SQLException) t).getSQLState() : null;
+    Log.log(Log.Level.ERROR, null, t, "type", timings.type, "datasource", timings.datasource, "sqlstate", state,
+            "elapsed-ms", Long.toString((System.nanoTime() - timings.started) / 1000000));
+  }
+
+  public void addWarnings(SQLWarning w) throws XMLStreamException {
+    if (w == null) return;
+
+    startProblems("warnings");
+    do {
+      addProblem("warning", w.getClass().getName(), w.getMessage(), true, w.getSQLState(), w.getErrorCode());
+      w = w.getNextWarning();
+    } while (w != null);
+    endProblems();
+  }
+
+  // What each format writes.  Meta items (the transaction, cursor, update
+  // counts, generated keys, exceptions and warnings) can be added at any
+  // point, before, between or after the rows.
+
+  protected abstract void addMeta(String name, String value) throws XMLStreamException;
+
+  protected void addMeta(String name, long value) throws XMLStreamException {
+    addMeta(name, Long.toString(value));
+  }
+
+  /**
+   * Starts one block of exceptions or warnings, ended by {@link #endProblems}.
+   */
+  protected abstract void startProblems(String name) throws XMLStreamException;
+
+  /**
+   * Adds an exception or warning.  <code>sql</code> says whether it's a
+   * SQLException with a SQLState (which may still be null) and vendor
+   * code.
+   */
+  protected abstract void addProblem(String name, String type, String reason,
+                                     boolean sql, String sqlState, int vendorCode) throws XMLStreamException;
+
+  protected abstract void endProblems() throws XMLStreamException;
+
+  protected abstract void startRows(Column[] columns, boolean typed) throws XMLStreamException;
+
+  protected abstract void endRows() throws XMLStreamException;
+
+  protected abstract void startRow() throws XMLStreamException;
+
+  protected abstract void endRow() throws XMLStreamException;
+
+  protected abstract void startColumn(Column column, boolean typed) throws XMLStreamException;
+
+  protected abstract void endColumn() throws XMLStreamException;
+
+  protected abstract void writeNull() throws XMLStreamException;
+
+  /**
+   * Writes a value as text.
+   */
+  protected abstract void writeString(String value) throws XMLStreamException;
+
+  /**
+   * Writes a number or boolean, whose text needs no escaping and which a
+   * format may write without quotes.
+   */
+  protected abstract void writeLiteral(String value) throws XMLStreamException;
+
+  /**
+   * Writes a value as text over several calls to {@link #writeText},
+   * ended by {@link #endText}.
+   */
+  protected abstract void startText() throws XMLStreamException;
+
+  protected abstract void writeText(String text) throws XMLStreamException;
+
+  /**
+   * Writes characters known to need no escaping, like Base64.
+   */
+  protected abstract void writeSafeText(char[] text, int len) throws XMLStreamException;
+
+  protected abstract void endText() throws XMLStreamException;
+
+  protected void writeUnknown(boolean isNull) throws XMLStreamException {
+    if (isNull) writeNull();
+    else writeString("UNKNOWN TYPE");
+  }
+
+  /**
+   * Gets ready to write bytes straight to the output stream, around the
+   * formatting.  <code>result</code> says they'll be a whole nested
+   * result, otherwise they're rows.
+   */
+  protected abstract void startRaw(boolean result) throws XMLStreamException;
+
+  protected void endRaw(boolean result) throws XMLStreamException {
+  }
+
+  protected abstract void flush() throws XMLStreamException;
+
+  /**
+   * Writes the stream's bytes as Base64 text, one chunk at a time, and
+   * closes it.
+   */
+  private void writeBase64(InputStream in) throws IOException, XMLStreamException {
+    try {
+      byte[] buf = new byte[BINARY_CHUNK_SIZE];
+      char[] chars = new char[BINARY_CHUNK_SIZE / 3 * 4];
+      int len;
+      startText();
+      while ((len = readFully(in, buf)) > 0) {
+        byte[] encoded = Base64.encodeBase64(len == buf.length ? buf : Arrays.copyOf(buf, len));
+        for (int i = 0; i < encoded.length; i++) {
+          chars[i] = (char) encoded[i];
+        }
+        writeSafeText(chars, encoded.length);
+      }
+      endText();
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Copies the reader's characters into the response, one chunk at a
+   * time, and closes it.
+   */
+  private void writeCharacters(Reader in) throws IOException, XMLStreamException {
+    try {
+      char[] buf = new char[CHARACTER_CHUNK_SIZE];
+      int held = 0;
+      int read;
+      startText();
+      while ((read = in.read(buf, held, buf.length - held)) != -1) {
+        int len = held + read;
+        // Hold back a trailing high surrogate so the check sees whole pairs
+        held = len > 0 && Character.isHighSurrogate(buf[len - 1]) ? 1 : 0;
+        writeText(new String(buf, 0, len - held));
+        if (held > 0) {
+          buf[0] = buf[len - 1];
+        }
+      }
+      if (held > 0) {
+        writeText(String.valueOf(buf[0]));
+      }
+      endText();
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private static int readFully(InputStream in, byte[] buf) throws IOException {
+    int len = 0;
+    int read;
+    while (len < buf.length && (read = in.read(buf, len, buf.length - len)) != -1) {
+      len += read;
+    }
+    return len;
+  }
+
+  private static void free(Blob b) {
+    try {
+      b.free();
+    }
+    catch (SQLException ignored) { }
+    catch (AbstractMethodError ignored) { }  // driver predates JDBC 4
+  }
+
+  /**
+   * Passes everything through to the real output, counting it and
+   * keeping a copy while capturing.
+   */
+  static class CaptureStream extends OutputStream {
+    private OutputStream out;
+    private ByteArrayOutputStream copy;
+    private long limit;
+    private boolean overflowed;
+    long count = 0;
+
+    CaptureStream(OutputStream out) {
+      this.out = out;
+    }
+
+    void startCapture(long limit) {
+      this.limit = limit;
+      copy = new ByteArrayOutputStream();
+      overflowed = false;
+    }
+
+    byte[] endCapture() {
+      byte[] captured = overflowed ? null : copy.toByteArray();
+      copy = null;
+      return captured;
+    }
+
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+      if (copy != null) {
+        copy.write(b);
+        checkLimit();
+      }
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+      if (copy != null) {
+        copy.write(b, off, len);
+        checkLimit();
+      }
+    }
+
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    public void close() throws IOException {
+      out.close();
+    }
+
+    private void checkLimit() {
+      if (copy.size() > limit) {
+        // Too big to cache, stop copying
+        copy = null;
+        overflowed = true;
+      }
+    }
+  }
+}
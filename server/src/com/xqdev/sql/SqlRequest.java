@@ -0,0 +1,92 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.util.*;
+
+/**
+ * A decoded <code>sql:request</code>.  See {@link RequestDecoder}.
+ *
+ * The simple execute-options (max-rows, query-timeout, and so on) are kept
+ * by name in a map; the ones with structure (parameters) get fields of
+ * their own.
+ */
+class SqlRequest {
+
+  static final Parameter[] NO_PARAMETERS = new Parameter[0];
+
+  String type = "";
+  String query = "";
+  Map<String, String> options = new HashMap<String, String>();
+
+  /** Every sql:parameter in every sql:parameters block, in order */
+  Parameter[] parameters = NO_PARAMETERS;
+
+  /** One entry per sql:parameters block, used as rows by batch requests */
+  List<Parameter[]> parameterSets = new ArrayList<Parameter[]>();
+
+  /** The nested requests of a script */
+  List<SqlRequest> statements = new ArrayList<SqlRequest>();
+
+  /**
+   * Returns the text of the named execute-option, or "" if it wasn't given.
+   */
+  public String getOption(String name) {
+    String value = options.get(name);
+    return value == null ? "" : value;
+  }
+
+  /**
+   * Returns the named execute-option as an int, or defaultValue if it
+   * wasn't given.  A value that isn't a number is logged and ignored.
+   */
+  public int getIntOption(String name, int defaultValue) {
+    String value = options.get(name);
+    if (value == null || value.length() == 0) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value);
+    }
+    catch (NumberFormatException e) {
+      Log.log("Warning: '" + name + "' option is not a number: " + value + ", using " + defaultValue);
+      return defaultValue;
+    }
+  }
+
+  /**
+   * One bind parameter.
+   */
+  static class Parameter {
+    String type;
+    String value;
+    boolean isNull;
+    boolean out;
+
+    Parameter(String type, String value, boolean isNull, boolean out) {
+      this.type = type;
+      this.value = value;
+      this.isNull = isNull;
+      this.out = out;
+    }
+  }
+}
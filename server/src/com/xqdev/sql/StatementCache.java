@@ -0,0 +1,173 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of prepared and callable statements for one pooled connection,
+ * so the same SQL text sent over and over isn't re-parsed by the database
+ * each time.
+ *
+ * A connection is only ever used by one request at a time, so there's no
+ * locking here.  Statements are checked out by {@link #prepare} and put
+ * back by {@link #release}; the cache only ever holds statements nobody is
+ * using.
+ */
+class StatementCache {
+
+  private int maxSize;
+  private Connection con;
+  private AtomicLong hits;
+  private AtomicLong misses;
+  private Map<Key, PreparedStatement> statements;
+  private Map<PreparedStatement, Key> checkedOut = new IdentityHashMap<PreparedStatement, Key>();
+
+  /**
+   * @param con the connection the statements belong to
+   * @param maxSize most statements to keep, 0 disables caching
+   * @param hits counter to bump on a cache hit, shared across the pool
+   * @param misses counter to bump on a cache miss, shared across the pool
+   */
+  public StatementCache(Connection con, int maxSize, AtomicLong hits, AtomicLong misses) {
+    this.con = con;
+    this.maxSize = maxSize;
+    this.hits = hits;
+    this.misses = misses;
+    final int limit = maxSize;
+    statements = new LinkedHashMap<Key, PreparedStatement>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Key, PreparedStatement> eldest) {
+        if (size() > limit) {
+          closeQuietly(eldest.getValue());
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Returns a ready-to-bind statement for the query, reusing a cached one
+   * if possible.  Hand it back with {@link #release} when done.
+   */
+  public PreparedStatement prepare(String query, boolean callable, boolean generatedKeys)
+          throws SQLException {
+    Key key = new Key(query, callable, generatedKeys);
+    PreparedStatement stmt = statements.remove(key);
+    if (stmt != null) {
+      hits.incrementAndGet();
+    }
+    else {
+      if (maxSize > 0) misses.incrementAndGet();
+      if (callable) {
+        stmt = con.prepareCall(query);
+      }
+      else if (generatedKeys) {
+        // Note this call depends on JDBC 3.0 (accompanying Java 1.4).
+        // The call without the 2nd argument would work on earlier JVMs,
+        // you just won't catch any generated keys.
+        stmt = con.prepareStatement(query, Statement.RETURN_GENERATED_KEYS);
+      }
+      else {
+        stmt = con.prepareStatement(query);
+      }
+    }
+    checkedOut.put(stmt, key);
+    return stmt;
+  }
+
+  /**
+   * Puts a statement back for reuse after clearing its parameters and any
+   * settings a request may have changed, or closes it if caching is off
+   * or it can't be reset cleanly.
+   */
+  public void release(PreparedStatement stmt) {
+    Key key = checkedOut.remove(stmt);
+    if (key == null || maxSize <= 0) {
+      closeQuietly(stmt);
+      return;
+    }
+    try {
+      stmt.clearParameters();
+      if (!key.callable) stmt.clearBatch();
+      stmt.clearWarnings();
+      if (stmt.getMaxRows() != 0) stmt.setMaxRows(0);
+      if (stmt.getQueryTimeout() != 0) stmt.setQueryTimeout(0);
+      if (stmt.getMaxFieldSize() != 0) stmt.setMaxFieldSize(0);
+      if (stmt.getFetchSize() < 0) stmt.setFetchSize(0);  // MySQL's streaming marker
+    }
+    catch (SQLException e) {
+      closeQuietly(stmt);
+      return;
+    }
+    PreparedStatement displaced = statements.put(key, stmt);
+    if (displaced != null && displaced != stmt) {
+      closeQuietly(displaced);
+    }
+  }
+
+  public int size() {
+    return statements.size();
+  }
+
+  public void close() {
+    for (PreparedStatement stmt : statements.values()) {
+      closeQuietly(stmt);
+    }
+    statements.clear();
+    for (PreparedStatement stmt : checkedOut.keySet()) {
+      closeQuietly(stmt);
+    }
+    checkedOut.clear();
+  }
+
+  private static void closeQuietly(Statement stmt) {
+    try {
+      stmt.close();
+    }
+    catch (SQLException ignored) { }
+  }
+
+  private static class Key {
+    String query;
+    boolean callable;
+    boolean generatedKeys;
+
+    Key(String query, boolean callable, boolean generatedKeys) {
+      this.query = query;
+      this.callable = callable;
+      this.generatedKeys = generatedKeys;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key k = (Key) o;
+      return callable == k.callable && generatedKeys == k.generatedKeys && query.equals(k.query);
+    }
+
+    public int hashCode() {
+      return query.hashCode() * 4 + (callable ? 2 : 0) + (generatedKeys ? 1 : 0);
+    }
+  }
+}
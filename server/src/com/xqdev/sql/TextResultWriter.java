@@ -0,0 +1,82 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Plumbing for the formats that are written as plain UTF-8 text rather
+ * than through a StAX writer.
+ */
+abstract class TextResultWriter extends ResultWriter {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  protected final Writer writer;
+
+  protected TextResultWriter(OutputStream out) {
+    super(out);
+    writer = new BufferedWriter(new OutputStreamWriter(this.out, UTF8), 8192);
+  }
+
+  protected void write(String s) throws XMLStreamException {
+    try {
+      writer.write(s);
+    }
+    catch (IOException e) {
+      throw failed(e);
+    }
+  }
+
+  protected void write(char c) throws XMLStreamException {
+    try {
+      writer.write(c);
+    }
+    catch (IOException e) {
+      throw failed(e);
+    }
+  }
+
+  protected void write(char[] text, int len) throws XMLStreamException {
+    try {
+      writer.write(text, 0, len);
+    }
+    catch (IOException e) {
+      throw failed(e);
+    }
+  }
+
+  protected void flush() throws XMLStreamException {
+    try {
+      writer.flush();
+    }
+    catch (IOException e) {
+      throw failed(e);
+    }
+  }
+
+  protected static XMLStreamException failed(IOException e) {
+    return new XMLStreamException("Could not write the response: " + e.getMessage(), e);
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Limits how many statements run at once against one datasource, and
+ * makes sure none runs much past its <code>query-timeout</code>.
+ *
+ * Each request thread waits for a turn before borrowing a connection.
+ * Once <code>max-queued-statements</code> requests are already waiting,
+ * more are turned away at once with an exception instead of joining the
+ * queue.  A burst of slow queries then costs the container a bounded
+ * number of threads, not all of them.  To keep slow reports from getting
+ * in the way of quick lookups on the same database, give the reports a
+ * datasource of their own (the same url under another name) with a low
+ * <code>max-concurrent-statements</code>.  They then queue among
+ * themselves.
+ *
+ * Settings, per datasource or from the servlet init-params:
+ * <ul>
+ * <li><code>max-concurrent-statements</code> - statements running at once, 0 for the pool size (default 0)
+ * <li><code>max-queued-statements</code> - requests waiting for a turn before more are turned away, 0 for no limit (default 0)
+ * </ul>
+ * A request waits at most <code>pool-wait-timeout</code> ms for its
+ * turn, or its own <code>query-timeout</code> if that's shorter.
+ *
+ * Not every driver honors <code>Statement.setQueryTimeout</code>, and
+ * those that do usually stop counting once the first rows come back.  So
+ * a statement with a query-timeout is also watched from the housekeeping
+ * thread, and cancelled if it's still executing or being read when the
+ * timeout runs out.
+ */
+class Throttle {
+
+  public static final String MAX_CONCURRENT = "max-concurrent-statements";
+  public static final String MAX_QUEUED = "max-queued-statements";
+
+  private String name;
+  private int maxConcurrent;
+  private int maxQueued;
+  private long waitTimeout;
+  private Semaphore permits;
+  private Housekeeper housekeeper;
+  private AtomicInteger queued = new AtomicInteger();
+  private AtomicLong rejected = new AtomicLong();
+  private AtomicLong waitTimeouts = new AtomicLong();
+  private AtomicLong cancelled = new AtomicLong();
+
+  public Throttle(String name, Properties settings, Housekeeper housekeeper) {
+    this.name = name;
+    this.housekeeper = housekeeper;
+    maxConcurrent = ConnectionPool.getInt(settings, MAX_CONCURRENT, 0);
+    if (maxConcurrent < 1) {
+      maxConcurrent = Math.max(1, ConnectionPool.getInt(settings, ConnectionPool.MAX_SIZE, 20));
+    }
+    maxQueued = Math.max(0, ConnectionPool.getInt(settings, MAX_QUEUED, 0));
+    waitTimeout = ConnectionPool.getInt(settings, ConnectionPool.WAIT_TIMEOUT, 30000);
+    permits = new Semaphore(maxConcurrent, true);
+  }
+
+  /**
+   * Waits for a turn to run a statement.  Pair with {@link #leave}.
+   *
+   * @param queryTimeout the request's query-timeout in seconds, or -1
+   */
+  public void enter(int queryTimeout) throws SQLException {
+    try {
+      // Fair, so this only succeeds if nobody is waiting already
+      if (permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+        return;
+      }
+      int depth = queued.incrementAndGet();
+      try {
+        if (maxQueued > 0 && depth > maxQueued) {
+          rejected.incrementAndGet();
+          throw new SQLTransientException("Datasource '" + name + "' is too busy: " + maxConcurrent +
+                  " statements are running and " + maxQueued + " are waiting (" + MAX_QUEUED + "), try again later",
+                  "08004");
+        }
+        long timeout = queryTimeout > 0 ? Math.min(waitTimeout, queryTimeout * 1000L) : waitTimeout;
+        if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+          waitTimeouts.incrementAndGet();
+          throw new SQLTimeoutException("Timed out after " + timeout + " ms waiting for a turn on datasource '" +
+                  name + "', all " + maxConcurrent + " are in use (" + MAX_CONCURRENT + ")", "HYT00");
+        }
+      }
+      finally {
+        queued.decrementAndGet();
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a turn on datasource '" + name + "'");
+    }
+  }
+
+  public void leave() {
+    permits.release();
+  }
+
+  /**
+   * Starts watching a statement that's about to execute.  Unless the
+   * returned deadline is stopped first, the statement is cancelled once
+   * <code>queryTimeout</code> seconds have passed.
+   */
+  public Deadline watch(Statement stmt, int queryTimeout) {
+    Deadline deadline = new Deadline(stmt, queryTimeout);
+    if (queryTimeout > 0 && housekeeper != null) {
+      deadline.future = housekeeper.scheduleOnce(deadline, queryTimeout * 1000L);
+    }
+    return deadline;
+  }
+
+  public int getRunningCount() { return maxConcurrent - permits.availablePermits(); }
+  public int getQueuedCount() { return queued.get(); }
+  public int getMaxConcurrent() { return maxConcurrent; }
+  public long getRejectedCount() { return rejected.get(); }
+  public long getWaitTimeoutCount() { return waitTimeouts.get(); }
+  public long getCancelledCount() { return cancelled.get(); }
+
+  /**
+   * The point at which one statement gets cancelled.
+   */
+  class Deadline implements Runnable {
+    private Statement stmt;
+    private int queryTimeout;
+    private ScheduledFuture<?> future;
+    private boolean stopped = false;
+    private boolean fired = false;
+
+    Deadline(Statement stmt, int queryTimeout) {
+      this.stmt = stmt;
+      this.queryTimeout = queryTimeout;
+    }
+
+    // Synchronized with stop() so a statement that has gone back to the
+    // statement cache is never cancelled under its next user
+    public synchronized void run() {
+      if (stopped) return;
+      fired = true;
+      cancelled.incrementAndGet();
+      Log.log("Cancelling a statement on datasource '" + name + "' that ran past its query-timeout of " +
+              queryTimeout + " s");
+      try {
+        stmt.cancel();
+      }
+      catch (SQLException e) {
+        Log.log("Could not cancel the statement", e);
+      }
+    }
+
+    /**
+     * Stops watching, and returns whether the statement was cancelled.
+     */
+    public synchronized boolean stop() {
+      stopped = true;
+      if (future != null) future.cancel(false);
+      return fired;
+    }
+
+    /**
+     * The exception to report for a cancelled statement.
+     */
+    public SQLTimeoutException exception(Throwable cause) {
+      return new SQLTimeoutException("Statement cancelled after running past its query-timeout of " +
+              queryTimeout + " s", "HYT00", cause);
+    }
+  }
+}
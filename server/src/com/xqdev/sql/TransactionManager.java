@@ -0,0 +1,207 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps track of transactions that span several requests.  A transaction
+ * pins one pooled connection (with auto-commit off) from "begin" until
+ * "commit" or "rollback".  Requests name the transaction by the id handed
+ * out at "begin".  The transaction remembers which datasource its
+ * connection came from, so ids are unique across every datasource.
+ *
+ * A client that goes away without finishing would otherwise hold its
+ * connection and locks forever, so a housekeeping task rolls back any
+ * transaction left idle longer than <code>transaction-idle-timeout</code>
+ * ms (default 60000).
+ */
+class TransactionManager {
+
+  public static final String IDLE_TIMEOUT = "transaction-idle-timeout";
+
+  private long idleTimeout;
+  private ConcurrentHashMap<String, Transaction> transactions = new ConcurrentHashMap<String, Transaction>();
+  private ScheduledFuture<?> reaper;
+
+  public TransactionManager(long idleTimeout, Housekeeper housekeeper) {
+    this.idleTimeout = idleTimeout;
+    if (housekeeper != null && idleTimeout > 0) {
+      reaper = housekeeper.schedule(new Runnable() {
+        public void run() {
+          reap();
+        }
+      }, Math.max(1000, idleTimeout / 4));
+    }
+  }
+
+  /**
+   * Starts a transaction on a connection freshly borrowed from the pool.
+   * The returned transaction is already acquired by the caller.
+   */
+  public Transaction begin(DatasourceRegistry.Datasource ds) throws SQLException {
+    ConnectionPool pool = ds.getPool();
+    Connection con = pool.getConnection();
+    try {
+      con.setAutoCommit(false);
+    }
+    catch (SQLException e) {
+      pool.returnConnection(con);
+      throw e;
+    }
+    Transaction tx = new Transaction(UUID.randomUUID().toString(), ds, pool, con);
+    tx.busy.set(true);
+    transactions.put(tx.id, tx);
+    return tx;
+  }
+
+  /**
+   * Claims the transaction for the calling request.  Only one request may
+   * use a transaction at a time.  Pair with {@link #release}.
+   */
+  public Transaction acquire(String id) throws SQLException {
+    Transaction tx = transactions.get(id);
+    if (tx == null) {
+      throw new SQLException("Unknown transaction '" + id + "', it may have been rolled back after sitting idle");
+    }
+    if (!tx.busy.compareAndSet(false, true)) {
+      throw new SQLException("Transaction '" + id + "' is in use by another request");
+    }
+    return tx;
+  }
+
+  public void release(Transaction tx) {
+    tx.lastUsed = System.currentTimeMillis();
+    tx.busy.set(false);
+  }
+
+  public void commit(String id) throws SQLException {
+    Transaction tx = acquire(id);
+    transactions.remove(id);
+    boolean clean = false;
+    try {
+      tx.con.commit();
+      clean = true;
+    }
+    catch (SQLException e) {
+      // Restoring auto-commit would otherwise commit whatever part of the
+      // work the database kept, or pool a connection still in a transaction
+      clean = rollbackQuietly(tx);
+      throw e;
+    }
+    finally {
+      finish(tx, !clean);
+    }
+  }
+
+  public void rollback(String id) throws SQLException {
+    Transaction tx = acquire(id);
+    transactions.remove(id);
+    boolean clean = false;
+    try {
+      tx.con.rollback();
+      clean = true;
+    }
+    finally {
+      finish(tx, !clean);
+    }
+  }
+
+  /**
+   * Rolls back every open transaction, used at shutdown.
+   */
+  public void close() {
+    if (reaper != null) reaper.cancel(false);
+    for (Transaction tx : transactions.values()) {
+      abandon(tx);
+    }
+  }
+
+  public int getOpenCount() {
+    return transactions.size();
+  }
+
+  private void reap() {
+    long now = System.currentTimeMillis();
+    for (Transaction tx : transactions.values()) {
+      if (now - tx.lastUsed > idleTimeout && tx.busy.compareAndSet(false, true)) {
+        Log.log("Rolling back transaction '" + tx.id + "', idle for " + (now - tx.lastUsed) + " ms");
+        abandon(tx);
+      }
+    }
+  }
+
+  private void abandon(Transaction tx) {
+    if (!transactions.remove(tx.id, tx)) return;
+    finish(tx, !rollbackQuietly(tx));
+  }
+
+  private boolean rollbackQuietly(Transaction tx) {
+    try {
+      tx.con.rollback();
+      return true;
+    }
+    catch (SQLException e) {
+      Log.log("Rollback of transaction '" + tx.id + "' failed", e);
+      return false;
+    }
+  }
+
+  /**
+   * Hands the connection back to its pool.  One whose transaction may
+   * still be open (<code>unclean</code>) is closed instead of reused.
+   */
+  private void finish(Transaction tx, boolean unclean) {
+    if (!unclean) {
+      try {
+        tx.con.setAutoCommit(true);
+      }
+      catch (SQLException e) {
+        Log.log("Could not restore auto-commit after transaction '" + tx.id + "'", e);
+        unclean = true;
+      }
+    }
+    tx.pool.returnConnection(tx.con, unclean);
+  }
+
+  /**
+   * A connection pinned across requests.
+   */
+  static class Transaction {
+    String id;
+    DatasourceRegistry.Datasource ds;
+    ConnectionPool pool;
+    Connection con;
+    volatile long lastUsed = System.currentTimeMillis();
+    AtomicBoolean busy = new AtomicBoolean();
+
+    Transaction(String id, DatasourceRegistry.Datasource ds, ConnectionPool pool, Connection con) {
+      this.id = id;
+      this.ds = ds;
+      this.pool = pool;
+      this.con = con;
+    }
+  }
+}
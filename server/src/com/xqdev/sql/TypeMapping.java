@@ -26,12 +26,10 @@ import java.sql.Types;
 import java.sql.CallableStatement;
 import java.sql.SQLException;
 import java.sql.PreparedStatement;
-import java.sql.Time;
-import java.sql.Timestamp;
 import java.text.ParseException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.math.BigDecimal;
+import java.io.InputStream;
+import org.apache.commons.codec.binary.Base64InputStream;
 
 /**
  * Handles mappings between parameter types passed in the <code>type</code> attribute and
@@ -39,15 +37,10 @@ import java.util.Date;
  */
 class TypeMapping {
 
-  private static final String ISO_DATE_PATTERN = "yyyy-MM-ddZ";
-  private static final DateFormat DATE_PARSER = new SimpleDateFormat(ISO_DATE_PATTERN);
-  private static final String ISO_TIME_PATTERN = "HH:mm:ss.SSSZ";
-  private static final DateFormat TIME_PARSER = new SimpleDateFormat(ISO_TIME_PATTERN);
-  private static final String ISO_DATETIME_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
-  private static final DateFormat DATETIME_PARSER = new SimpleDateFormat(ISO_DATETIME_PATTERN);
-
   public static int getSqlDataType(String type) {
-    if (type.equalsIgnoreCase("boolean"))
+    if (type.equalsIgnoreCase("bigdecimal"))
+      return Types.DECIMAL;
+    else if (type.equalsIgnoreCase("boolean"))
       return Types.BOOLEAN;
     else if (type.equalsIgnoreCase("date"))
       return Types.DATE;
@@ -93,7 +86,9 @@ class TypeMapping {
 
     Object returnObject = null;
 
-    if (type.equalsIgnoreCase("boolean"))
+    if (type.equalsIgnoreCase("bigdecimal"))
+      returnObject = callableStmt.getBigDecimal(index);
+    else if (type.equalsIgnoreCase("boolean"))
       returnObject = callableStmt.getBoolean(index);
     else if (type.equalsIgnoreCase("date"))
       returnObject = callableStmt.getDate(index);
@@ -141,20 +136,17 @@ class TypeMapping {
   public static void parameterize(String paramType, boolean paramNull, PreparedStatement stmt,
            int paramPosition, String paramValue) throws SQLException, ParseException {
 
-    if (paramType.equalsIgnoreCase("boolean")) {
+    if (paramType.equalsIgnoreCase("bigdecimal")) {
+      if (paramNull) { stmt.setNull(paramPosition, Types.DECIMAL); }
+      else { stmt.setBigDecimal(paramPosition, new BigDecimal(paramValue.trim())); }
+    }
+    else if (paramType.equalsIgnoreCase("boolean")) {
       if (paramNull) { stmt.setNull(paramPosition, Types.BOOLEAN); }  // MySQL seems to ignore types
       else { stmt.setBoolean(paramPosition, new Boolean(paramValue).booleanValue()); }
     }
-    else if (paramType.equalsIgnoreCase("date")) {  // dates come as long values
+    else if (paramType.equalsIgnoreCase("date")) {  // dates come as xs:date
       if (paramNull) { stmt.setNull(paramPosition, Types.DATE); }
-      else {
-        int lastIndex = paramValue.lastIndexOf(':');
-        String fixedFormat = paramValue.substring(0, lastIndex) +
-                paramValue.substring(lastIndex + 1, paramValue.length());
-
-        Date date = DATE_PARSER.parse(fixedFormat);
-        stmt.setDate(paramPosition, new java.sql.Date(date.getTime()));
-      }
+      else { stmt.setDate(paramPosition, DateTimeParser.parseDate(paramValue)); }
     }
     else if (paramType.equalsIgnoreCase("double")) {
       if (paramNull) { stmt.setNull(paramPosition, Types.DOUBLE); }
@@ -182,31 +174,20 @@ class TypeMapping {
     }
     else if (paramType.equalsIgnoreCase("time")) {
       if (paramNull) { stmt.setNull(paramPosition, Types.TIME); }
-      else {
-        int lastIndex = paramValue.lastIndexOf(':');
-        String fixedFormat = paramValue.substring(0, lastIndex) +
-                paramValue.substring(lastIndex + 1, paramValue.length());
-        Date date = TIME_PARSER.parse(fixedFormat);
-        stmt.setTime(paramPosition, new Time(date.getTime()));
-      }
+      else { stmt.setTime(paramPosition, DateTimeParser.parseTime(paramValue)); }
     }
     else if (paramType.equalsIgnoreCase("timestamp")) {
       if (paramNull) { stmt.setNull(paramPosition, Types.TIMESTAMP); }
-      else {
-        int lastIndex = paramValue.lastIndexOf(':');
-        String fixedFormat = paramValue.substring(0, lastIndex) +
-                paramValue.substring(lastIndex + 1, paramValue.length());
-        Date date = DATETIME_PARSER.parse(fixedFormat);
-        stmt.setTimestamp(paramPosition, new Timestamp(date.getTime()));
-      }
+      else { stmt.setTimestamp(paramPosition, DateTimeParser.parseTimestamp(paramValue)); }
     }
-    // blob is not supported but we do want to allow for null blob parameters
+    // binary values come Base64 encoded, an empty value is taken as null
     else if (paramType.equalsIgnoreCase("blob")) {
-      stmt.setNull(paramPosition, Types.BLOB);
+      if (paramNull || isBlank(paramValue)) { stmt.setNull(paramPosition, Types.BLOB); }
+      else { setBase64Stream(stmt, paramPosition, paramValue); }
     }
-    // longvarbinary is not supported but we do want to allow for null longvarbinary parameters
     else if (paramType.equalsIgnoreCase("longvarbinary")) {
-      stmt.setNull(paramPosition, Types.LONGVARBINARY);
+      if (paramNull || isBlank(paramValue)) { stmt.setNull(paramPosition, Types.LONGVARBINARY); }
+      else { setBase64Stream(stmt, paramPosition, paramValue); }
     }
     else {
       String s = "Unknown parameter type received: " + paramType + " with value: " + paramValue;
@@ -214,4 +195,70 @@ class TypeMapping {
       throw new RuntimeException(s);
     }
   }
+
+  /**
+   * Binds Base64 text as a stream that's decoded as the driver reads it,
+   * so the decoded bytes are never held in memory all at once.
+   */
+  private static void setBase64Stream(PreparedStatement stmt, int paramPosition, String base64)
+           throws SQLException {
+    InputStream in = new Base64InputStream(new AsciiInputStream(base64));
+    stmt.setBinaryStream(paramPosition, in, decodedLength(base64));
+  }
+
+  /**
+   * Returns the number of bytes the Base64 text decodes to.  The decoder
+   * skips whitespace and padding, so only alphabet characters count.
+   */
+  private static int decodedLength(String base64) {
+    long count = 0;
+    for (int i = 0; i < base64.length(); i++) {
+      char c = base64.charAt(i);
+      if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '+' || c == '/') {
+        count++;
+      }
+    }
+    return (int) (count * 3 / 4);
+  }
+
+  private static boolean isBlank(String value) {
+    if (value == null) return true;
+    for (int i = 0; i < value.length(); i++) {
+      if (!Character.isWhitespace(value.charAt(i))) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Reads the characters of a string of ASCII text as bytes, without
+   * copying it into a byte array first.
+   */
+  private static class AsciiInputStream extends InputStream {
+    private String text;
+    private int pos = 0;
+
+    AsciiInputStream(String text) {
+      this.text = text;
+    }
+
+    public int read() {
+      return pos < text.length() ? toByte(text.charAt(pos++)) : -1;
+    }
+
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) return 0;
+      if (pos >= text.length()) return -1;
+      int n = Math.min(len, text.length() - pos);
+      for (int i = 0; i < n; i++) {
+        b[off + i] = (byte) toByte(text.charAt(pos++));
+      }
+      return n;
+    }
+
+    // Anything outside ASCII can't be Base64, so make sure it isn't
+    // mistaken for an alphabet character once truncated to a byte
+    private static int toByte(char c) {
+      return c < 128 ? c : '?';
+    }
+  }
 }
@@ -22,6 +22,7 @@
 package com.xqdev.sql;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.text.*;
 import java.util.regex.*;
 import org.jdom.*;
@@ -30,26 +31,179 @@ import org.jdom.xpath.XPath;
 
 /**
  * Package protected class to simplify XPath work.
+ *
+ * Compiled expressions are cached across instances, keyed by the
+ * expression text and the namespace bindings.  JDOM's Jaxen-backed XPath
+ * objects remember their context between calls, so they aren't safe to
+ * share; each key keeps a small free list and every evaluation borrows
+ * its own copy.  Plain child paths like
+ * <code>sql:execute-options/sql:max-rows</code> (the bulk of what MLSQL
+ * asks for) skip XPath altogether and walk the children directly.
  */
 class XPathHelper {
 
+  // Distinct expressions beyond this many are compiled per use, not cached
+  private static final int MAX_CACHED_EXPRESSIONS = 256;
+  private static final Pattern CHILD_PATH = Pattern.compile("/?[\\w.-]+:[\\w.-]+(/[\\w.-]+:[\\w.-]+)*");
+
+  private static ConcurrentHashMap<String, ConcurrentLinkedQueue<XPath>> compiled =
+          new ConcurrentHashMap<String, ConcurrentLinkedQueue<XPath>>();
+  private static ConcurrentHashMap<String, Step[]> childPaths = new ConcurrentHashMap<String, Step[]>();
+
 	Object context;
   Namespace[] namespaces;
+  String namespaceKey;
 
   public XPathHelper(Object context) {
-		this.context = context;
+		this(context, new Namespace[0]);
 	}
 
   public XPathHelper(Object context, Namespace[] namespaces) {
     this.context = context;
     this.namespaces = namespaces;
+    StringBuffer buf = new StringBuffer();
+    for (Namespace n : namespaces) {
+      buf.append(n.getPrefix()).append('=').append(n.getURI()).append(' ');
+    }
+    this.namespaceKey = buf.toString();
+  }
+
+  private Object selectSingleNode(String xpath) throws JDOMException {
+    Step[] steps = getChildPath(xpath);
+    if (steps != null) {
+      List<Element> found = new ArrayList<Element>(1);
+      walk(xpath.startsWith("/") ? null : (Element) context, steps, 0, found, true);
+      return found.isEmpty() ? null : found.get(0);
+    }
+    XPath path = borrow(xpath);
+    try {
+      return path.selectSingleNode(context);
+    }
+    finally {
+      giveBack(xpath, path);
+    }
+  }
+
+  private List<?> selectNodes(String xpath) throws JDOMException {
+    Step[] steps = getChildPath(xpath);
+    if (steps != null) {
+      List<Element> found = new ArrayList<Element>();
+      walk(xpath.startsWith("/") ? null : (Element) context, steps, 0, found, false);
+      return found;
+    }
+    XPath path = borrow(xpath);
+    try {
+      return path.selectNodes(context);
+    }
+    finally {
+      giveBack(xpath, path);
+    }
+  }
+
+  private XPath borrow(String xpath) throws JDOMException {
+    ConcurrentLinkedQueue<XPath> free = compiled.get(namespaceKey + xpath);
+    if (free != null) {
+      XPath path = free.poll();
+      if (path != null) return path;
+    }
+    XPath path = XPath.newInstance(xpath);
+    for (Namespace n : namespaces) path.addNamespace(n);
+    return path;
+  }
+
+  private void giveBack(String xpath, XPath path) {
+    String key = namespaceKey + xpath;
+    ConcurrentLinkedQueue<XPath> free = compiled.get(key);
+    if (free == null) {
+      if (compiled.size() >= MAX_CACHED_EXPRESSIONS) return;
+      compiled.putIfAbsent(key, new ConcurrentLinkedQueue<XPath>());
+      free = compiled.get(key);
+    }
+    free.offer(path);
+  }
+
+  /**
+   * Returns the steps of a plain child path, or null if the expression
+   * needs real XPath (or the context isn't something we can walk).
+   */
+  private Step[] getChildPath(String xpath) {
+    boolean absolute = xpath.startsWith("/");
+    if (absolute ? !(context instanceof Document) : !(context instanceof Element)) {
+      return null;
+    }
+    String key = namespaceKey + xpath;
+    Step[] steps = childPaths.get(key);
+    if (steps != null) {
+      return steps.length == 0 ? null : steps;
+    }
+    steps = parseChildPath(xpath);
+    if (childPaths.size() < MAX_CACHED_EXPRESSIONS) {
+      childPaths.put(key, steps == null ? new Step[0] : steps);
+    }
+    return steps;
+  }
+
+  private Step[] parseChildPath(String xpath) {
+    if (!CHILD_PATH.matcher(xpath).matches()) {
+      return null;
+    }
+    String[] parts = (xpath.startsWith("/") ? xpath.substring(1) : xpath).split("/");
+    Step[] steps = new Step[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      int colon = parts[i].indexOf(':');
+      Namespace ns = null;
+      String prefix = parts[i].substring(0, colon);
+      for (Namespace n : namespaces) {
+        if (n.getPrefix().equals(prefix)) ns = n;
+      }
+      if (ns == null) {
+        return null;  // let Jaxen report the unbound prefix
+      }
+      steps[i] = new Step(parts[i].substring(colon + 1), ns);
+    }
+    return steps;
+  }
+
+  /**
+   * Collects the elements matching steps[i..] below <code>from</code>, in
+   * document order.  A null <code>from</code> stands for the document, so
+   * the first step of an absolute path is matched against the root.
+   */
+  private void walk(Element from, Step[] steps, int i, List<Element> found, boolean firstOnly) {
+    List<?> children;
+    if (from == null) {
+      Element root = ((Document) context).getRootElement();
+      boolean matches = root.getName().equals(steps[i].name) && root.getNamespace().equals(steps[i].namespace);
+      children = matches ? Collections.singletonList(root) : Collections.<Element>emptyList();
+    }
+    else {
+      children = from.getChildren(steps[i].name, steps[i].namespace);
+    }
+    for (Object o : children) {
+      Element child = (Element) o;
+      if (i == steps.length - 1) {
+        found.add(child);
+      }
+      else {
+        walk(child, steps, i + 1, found, firstOnly);
+      }
+      if (firstOnly && !found.isEmpty()) return;
+    }
+  }
+
+  private static class Step {
+    String name;
+    Namespace namespace;
+
+    Step(String name, Namespace namespace) {
+      this.name = name;
+      this.namespace = namespace;
+    }
   }
 
   public Object getNode(String xpath) throws XPathHelperException {
 		try {
-			XPath path = XPath.newInstance(xpath);
-      for (Namespace n : namespaces) path.addNamespace(n);
-      return path.selectSingleNode(context);
+			return selectSingleNode(xpath);
 		}
 		catch (JDOMException e) {
 			throw new XPathHelperException(e);
@@ -59,9 +213,7 @@ class XPathHelper {
 	// Returns the Element matching the xpath as an XML string or "" if none
 	public String getElementAsString(String xpath) throws XPathHelperException {
 		try {
-			XPath path = XPath.newInstance(xpath);
-      for (Namespace n : namespaces) path.addNamespace(n);
-      Object node = path.selectSingleNode(context);
+			Object node = selectSingleNode(xpath);
 			if (node instanceof Element) {
 				Element element = (Element) node;
 				XMLOutputter outputter = new XMLOutputter();
@@ -80,9 +232,7 @@ class XPathHelper {
 	// Returns the string matching the xpath or "" if none
 	public String getString(String xpath) throws XPathHelperException {
 		try {
-			XPath path = XPath.newInstance(xpath);
-      for (Namespace n : namespaces) path.addNamespace(n);
-      Object node = path.selectSingleNode(context);
+			Object node = selectSingleNode(xpath);
 			if (node instanceof Text) {
 			  return ((Text) node).getTextTrim();
 			}
@@ -250,9 +400,7 @@ class XPathHelper {
 	public List getStrings(String xpath) throws XPathHelperException {
 		try {
 			List<String> strings = new ArrayList<String>();
-			XPath path = XPath.newInstance(xpath);
-      for (Namespace n : namespaces) path.addNamespace(n);
-      Iterator itr = path.selectNodes(context).iterator();
+			Iterator itr = selectNodes(xpath).iterator();
 			while (itr.hasNext()) {
 				strings.add(((Text) itr.next()).getTextTrim());
 			}
@@ -266,9 +414,7 @@ class XPathHelper {
 	public List<Element> getElements(String xpath) throws XPathHelperException {
 		try {
 			List<Element> elts = new ArrayList<Element>();
-			XPath path = XPath.newInstance(xpath);
-      for (Namespace n : namespaces) path.addNamespace(n);
-      Iterator itr = path.selectNodes(context).iterator();
+			Iterator itr = selectNodes(xpath).iterator();
 			while (itr.hasNext()) {
 				elts.add((Element) itr.next());
 			}
@@ -281,9 +427,7 @@ class XPathHelper {
 
   public Element getElement(String xpath) throws XPathHelperException {
     try {
-      XPath path = XPath.newInstance(xpath);
-      for (Namespace n : namespaces) path.addNamespace(n);
-      return (Element) path.selectSingleNode(context);
+      return (Element) selectSingleNode(xpath);
     }
     catch (JDOMException e) {
       throw new XPathHelperException("XPath '" + xpath + "' caused a JDOMException: " + e.getMessage(), e);
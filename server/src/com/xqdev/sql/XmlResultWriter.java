@@ -0,0 +1,259 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.io.*;
+import java.util.LinkedList;
+import javax.xml.stream.*;
+import org.jdom.IllegalDataException;
+import org.jdom.Verifier;
+
+/**
+ * Writes the <code>sql:result</code> document with a StAX writer.
+ *
+ * The response has the same shape the JDOM version had: a leading
+ * <code>sql:meta</code> followed by the tuples and out parameters.
+ * Anything meta-like (exceptions, warnings) that shows up after the body
+ * has started can't go back into the leading <code>sql:meta</code>, so it
+ * is written into a trailing <code>sql:meta</code> element instead.  Client
+ * paths like <code>$result/sql:meta/sql:exceptions</code> find it in
+ * either position.  Nested results are <code>sql:result</code> elements in
+ * the body of the outer one.
+ */
+class XmlResultWriter extends ResultWriter {
+
+  static final String XSI_NAMESPACE = "http://www.w3.org/2001/XMLSchema-instance";
+  static final String XS_NAMESPACE = "http://www.w3.org/2001/XMLSchema";
+
+  private static final XMLOutputFactory FACTORY = XMLOutputFactory.newInstance();
+
+  private XMLStreamWriter xml;
+  private int openElements = 0;  // depth below the document element
+  private int resultLevel = 0;   // depth of the current sql:result's children
+  private LinkedList<Integer> outerLevels = new LinkedList<Integer>();
+  private boolean metaOpen = false;
+
+  public XmlResultWriter(OutputStream out) throws XMLStreamException {
+    super(out);
+    xml = FACTORY.createXMLStreamWriter(this.out, "UTF-8");
+  }
+
+  public String getFormat() {
+    return XML;
+  }
+
+  public String getContentType() {
+    return "text/xml";
+  }
+
+  public void startDocument() throws XMLStreamException {
+    xml.writeStartDocument("UTF-8", "1.0");
+    startFragment();
+  }
+
+  public void startFragment() throws XMLStreamException {
+    xml.writeStartElement(SQL_PREFIX, "result", SQL_NAMESPACE);
+    xml.writeNamespace(SQL_PREFIX, SQL_NAMESPACE);
+    // For the xsi:type="xs:..." attributes of typed results
+    xml.writeNamespace("xsi", XSI_NAMESPACE);
+    xml.writeNamespace("xs", XS_NAMESPACE);
+    openMeta();
+  }
+
+  public void endDocument() throws XMLStreamException {
+    closeOpenElements();
+    xml.writeEndElement();  // sql:result
+    xml.writeEndDocument();
+    xml.flush();
+  }
+
+  public void startResult() throws XMLStreamException {
+    startBody();
+    startSql("result");
+    outerLevels.addFirst(resultLevel);
+    resultLevel = openElements;
+    openMeta();
+  }
+
+  public void endResult() throws XMLStreamException {
+    closeOpenElements();
+    end();  // sql:result
+    resultLevel = outerLevels.removeFirst();
+  }
+
+  public void addOutParam(int index, String value) throws XMLStreamException {
+    startBody();
+    startSql("parameter");
+    xml.writeAttribute("index", String.valueOf(index));
+    writeText(value);
+    end();
+  }
+
+  protected void addMeta(String name, String value) throws XMLStreamException {
+    openMeta();
+    startSql(name);
+    writeText(value);
+    end();
+  }
+
+  protected void startProblems(String name) throws XMLStreamException {
+    openMeta();
+    startSql(name);
+  }
+
+  protected void addProblem(String name, String type, String reason,
+                            boolean sql, String sqlState, int vendorCode) throws XMLStreamException {
+    startSql(name);
+    xml.writeAttribute("type", type);
+    writeSimple("reason", reason);
+    if (sql) {
+      writeSimple("sql-state", sqlState);
+      writeSimple("vendor-code", "" + vendorCode);
+    }
+    end();
+  }
+
+  protected void endProblems() throws XMLStreamException {
+    end();
+  }
+
+  protected void startRows(Column[] columns, boolean typed) throws XMLStreamException {
+    startBody();
+  }
+
+  protected void endRows() {
+  }
+
+  protected void startRow() throws XMLStreamException {
+    startSql("tuple");
+  }
+
+  protected void endRow() throws XMLStreamException {
+    end();
+  }
+
+  protected void startColumn(Column column, boolean typed) throws XMLStreamException {
+    xml.writeStartElement(column.name);
+    openElements++;
+    if (typed && column.kind.xsdType != null) {
+      xml.writeAttribute("xsi", XSI_NAMESPACE, "type", column.kind.xsdType);
+    }
+  }
+
+  protected void endColumn() throws XMLStreamException {
+    end();
+  }
+
+  protected void writeNull() throws XMLStreamException {
+    xml.writeAttribute("null", "true");
+  }
+
+  protected void writeString(String value) throws XMLStreamException {
+    writeText(value);
+  }
+
+  protected void writeLiteral(String value) throws XMLStreamException {
+    xml.writeCharacters(value);
+  }
+
+  protected void startText() {
+  }
+
+  protected void writeText(String text) throws XMLStreamException {
+    if (text == null) return;
+    String reason = Verifier.checkCharacterData(text);
+    if (reason != null) {
+      throw new IllegalDataException("The data \"" + text + "\" is not legal for a JDOM character content: " + reason);
+    }
+    xml.writeCharacters(text);
+  }
+
+  protected void writeSafeText(char[] text, int len) throws XMLStreamException {
+    xml.writeCharacters(text, 0, len);  // always legal XML
+  }
+
+  protected void endText() {
+  }
+
+  protected void writeUnknown(boolean isNull) throws XMLStreamException {
+    if (isNull) writeNull();
+    writeText("UNKNOWN TYPE");  // XXX ugly
+  }
+
+  /**
+   * Every sql:result declares the prefixes that rows and nested results
+   * use, so both can be copied in as bytes.
+   */
+  protected void startRaw(boolean result) throws XMLStreamException {
+    startBody();
+    xml.writeCharacters("");  // makes the writer close any start tag it's holding open
+    xml.flush();
+  }
+
+  protected void flush() throws XMLStreamException {
+    xml.flush();
+  }
+
+  /**
+   * Makes sure we're positioned inside a sql:meta.  Before the body has
+   * started that's the leading one, afterward it's a trailing one.
+   */
+  private void openMeta() throws XMLStreamException {
+    if (metaOpen) return;
+    closeOpenElements();
+    startSql("meta");
+    metaOpen = true;
+  }
+
+  private void startBody() throws XMLStreamException {
+    if (metaOpen) {
+      closeOpenElements();
+    }
+  }
+
+  /**
+   * Closes everything below the current sql:result.  This also tidies up
+   * after a tuple that was interrupted part way through by an exception.
+   */
+  private void closeOpenElements() throws XMLStreamException {
+    while (openElements > resultLevel) {
+      end();
+    }
+    metaOpen = false;
+  }
+
+  private void startSql(String name) throws XMLStreamException {
+    xml.writeStartElement(SQL_PREFIX, name, SQL_NAMESPACE);
+    openElements++;
+  }
+
+  private void end() throws XMLStreamException {
+    xml.writeEndElement();
+    openElements--;
+  }
+
+  private void writeSimple(String name, String text) throws XMLStreamException {
+    startSql(name);
+    writeText(text);
+    end();
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Mark Logic Interface to Relational Databases
+ *
+ * Copyright 2006 Jason Hunter and Ryan Grimm
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Jason Hunter
+ * @version 1.0
+ *
+ */
+package com.xqdev.sql;
+
+import java.sql.Date;
+import java.sql.Time;
+import java.sql.Timestamp;
+
+/**
+ * Writes JDBC values in XML Schema lexical form, for typed results.  The
+ * reverse of {@link DateTimeParser}.
+ *
+ * SQL DATE, TIME and TIMESTAMP values carry no timezone, and JDBC hands
+ * them back in the server's default zone, so they're written without one.
+ * Like the parser, nothing here keeps state, so it's safe from any thread.
+ */
+class XsdFormat {
+
+  /**
+   * Returns yyyy-mm-dd.
+   */
+  public static String formatDate(Date value) {
+    return value.toString();
+  }
+
+  /**
+   * Returns hh:mm:ss, with the milliseconds if there are any.
+   */
+  public static String formatTime(Time value) {
+    String text = value.toString();
+    int millis = (int) (value.getTime() % 1000);
+    if (millis < 0) millis += 1000;
+    if (millis == 0) {
+      return text;
+    }
+    StringBuffer buf = new StringBuffer(text.length() + 4);
+    buf.append(text).append('.');
+    if (millis < 100) buf.append('0');
+    if (millis < 10) buf.append('0');
+    buf.append(millis);
+    return buf.toString();
+  }
+
+  /**
+   * Returns yyyy-mm-ddThh:mm:ss, with the fractional seconds (to the
+   * nanosecond) if there are any.
+   */
+  public static String formatDateTime(Timestamp value) {
+    // Timestamp already writes the fraction without trailing zeros
+    String text = value.toString().replace(' ', 'T');
+    return text.endsWith(".0") ? text.substring(0, text.length() - 2) : text;
+  }
+
+  public static String formatDouble(double value) {
+    if (value == Double.POSITIVE_INFINITY) return "INF";
+    if (value == Double.NEGATIVE_INFINITY) return "-INF";
+    return Double.toString(value);  // NaN and the E notation are fine as they are
+  }
+
+  public static String formatFloat(float value) {
+    if (value == Float.POSITIVE_INFINITY) return "INF";
+    if (value == Float.NEGATIVE_INFINITY) return "-INF";
+    return Float.toString(value);
+  }
+}